@@ -0,0 +1,75 @@
+package com.dosse.airpods;
+
+import android.app.Notification;
+import android.content.Context;
+import android.os.Parcel;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the notification sent to the system doesn't grow with the number of updates (see NotificationBuilder).
+ * Runs on a device, RemoteViews and Parcel are stubs in local unit tests.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NotificationBuilderTest {
+
+    private static final int UPDATES = 10000;
+    //actions needed to render everything from scratch: layout, images, text visibility, texts and descriptions
+    private static final int FULL_RENDER_ACTIONS = 4 + 6 + 12 + 6 + 6;
+
+    private static int parcelSize(Notification notification) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            notification.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static PodsStatus randomStatus(Random random) {
+        return new PodsStatus(PodsStatus.pack(random.nextInt(11), random.nextInt(11), random.nextInt(11), random.nextInt(8),
+                random.nextBoolean() ? 0x0E : 0x0F), System.currentTimeMillis());
+    }
+
+    @Test
+    public void parcelSizeIsBounded() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        NotificationBuilder builder = new NotificationBuilder(context, new BatteryEstimator());
+        Random random = new Random(1);
+        int first = parcelSize(builder.build(randomStatus(random), true));
+        int max = first;
+        for (int i = 0; i < UPDATES; i++) {
+            //fresh and stale statuses, with and without location, so every kind of action is applied
+            PodsStatus status = i % 10 == 0 ? new PodsStatus(randomStatus(random).getPacked(), 0) : randomStatus(random);
+            Notification notification = builder.build(status, i % 50 != 0);
+            assertTrue("update " + i + ": " + builder.getActionCount() + " actions",
+                    builder.getActionCount() <= NotificationBuilder.MAX_ACTIONS + FULL_RENDER_ACTIONS);
+            max = Math.max(max, parcelSize(notification));
+        }
+        //without the reset, 10000 updates would have piled up over a hundred thousand actions
+        assertTrue("first " + first + " bytes, max " + max + " bytes", max <= first * 4);
+    }
+
+    @Test
+    public void sameStatusAddsNoActions() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        NotificationBuilder builder = new NotificationBuilder(context, new BatteryEstimator());
+        PodsStatus status = randomStatus(new Random(2));
+        builder.build(status, true);
+        int actions = builder.getActionCount();
+        for (int i = 0; i < 100; i++) {
+            builder.build(status, true);
+        }
+        assertEquals(actions, builder.getActionCount());
+    }
+}
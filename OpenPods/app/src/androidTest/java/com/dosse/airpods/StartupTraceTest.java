@@ -0,0 +1,56 @@
+package com.dosse.airpods;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time to first notification: starts PodsService with a saved state and checks, with StartupTrace, that the notification
+ * is posted soon after the service is created, without waiting for the settings, the receivers or the first beacon.
+ * Runs on a device, since it needs the real service and SystemClock. The phases are recorded once per process, so this
+ * must be the first time the service starts in the test process.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupTraceTest {
+
+    private static final long MAX_TIME_TO_FIRST_NOTIFICATION_MS = 500;
+    private static final long TIMEOUT_MS = 10000;
+
+    @Test
+    public void firstNotificationFromTheSnapshot() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        //what a previous instance of the service leaves when it stops while the AirPods are connected
+        PodsStatus status = new PodsStatus(PodsStatus.pack(8, 7, 5, 0, 0x0E), System.currentTimeMillis());
+        new StatusSnapshot(new File(context.getFilesDir(), StatusSnapshot.FILE_NAME))
+                .writeFinal(ServiceState.INITIAL.withStatus(status).withConnected(true), null);
+        assertEquals("the service already started in this process", 0, StartupTrace.get(StartupTrace.SERVICE_CREATED));
+        Intent intent = new Intent(context, PodsService.class);
+        context.startService(intent);
+        try {
+            long deadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+            while (StartupTrace.get(StartupTrace.FIRST_NOTIFICATION) == 0 && SystemClock.elapsedRealtime() < deadline) {
+                Thread.sleep(10);
+            }
+            long created = StartupTrace.get(StartupTrace.SERVICE_CREATED);
+            long notified = StartupTrace.get(StartupTrace.FIRST_NOTIFICATION);
+            assertNotEquals("no notification", 0, notified);
+            assertTrue("first notification after " + (notified - created) + " ms",
+                    notified - created <= MAX_TIME_TO_FIRST_NOTIFICATION_MS);
+            assertNotEquals(0, StartupTrace.get(StartupTrace.NOTIFICATION_THREAD_STARTED));
+        } finally {
+            context.stopService(intent);
+        }
+    }
+}
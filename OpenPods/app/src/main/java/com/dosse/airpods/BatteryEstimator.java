@@ -0,0 +1,153 @@
+package com.dosse.airpods;
+
+/**
+ * Estimates when each pod and the case will be empty, or full while charging.
+ *
+ * For each component, the last WINDOW level changes are kept in a ring, together with the running sums of a least squares
+ * line through them (time vs level), so adding a point and dropping the oldest one is O(1) and history is never rescanned.
+ * The line is only recomputed when the level actually changes: a status with the same level does nothing.
+ * Starting or stopping charging, disconnecting, or a level going the wrong way starts a new window.
+ *
+ * Levels are the ones in the beacon (0-10).
+ *
+ * PodsService owns the estimators and feeds them every status change, next to BatteryHistory, so they don't depend on a
+ * notification being shown. When the service starts, the main estimator is seeded with the recent samples of the history.
+ * The methods are synchronized, updates come from the scan callback and reads from the NotificationThread.
+ */
+public class BatteryEstimator {
+
+    public static final int LEFT = 0;
+    public static final int RIGHT = 1;
+    public static final int CASE = 2;
+    public static final int WINDOW = 6;
+
+    private static final int COMPONENTS = 3;
+    private static final double MINUTE = 60000;
+    private static final long SEED_MS = 3 * 60 * 60000; //samples of the history used by seed, enough for WINDOW level changes
+    private static final int SEED_POINTS = 512;
+
+    private final double[] times = new double[COMPONENTS * WINDOW]; //minutes since base
+    private final int[] levels = new int[COMPONENTS * WINDOW];
+    private final int[] head = new int[COMPONENTS];
+    private final int[] size = new int[COMPONENTS];
+    private final long[] base = new long[COMPONENTS];
+    private final int[] lastLevel = new int[COMPONENTS];
+    private final boolean[] lastCharging = new boolean[COMPONENTS];
+    private final double[] sumT = new double[COMPONENTS];
+    private final double[] sumL = new double[COMPONENTS];
+    private final double[] sumTT = new double[COMPONENTS];
+    private final double[] sumTL = new double[COMPONENTS];
+    private final long[] estimate = new long[COMPONENTS]; //time when the component will be empty/full, -1 if unknown
+
+    public BatteryEstimator() {
+        reset();
+    }
+
+    /**
+     * Forgets everything, for instance when another pair of AirPods takes the slot of a DeviceTable
+     */
+    public synchronized void reset() {
+        for (int c = 0; c < COMPONENTS; c++) {
+            reset(c, 0);
+        }
+    }
+
+    /**
+     * Feeds the samples of the last SEED_MS in the history, so that a restarted service shows an estimate without waiting for
+     * new level changes
+     */
+    public void seed(BatteryHistory history, long now) {
+        long[] timestamps = new long[SEED_POINTS];
+        long[] packed = new long[SEED_POINTS];
+        int n = history.query(now - SEED_MS, now, SEED_POINTS, timestamps, packed);
+        for (int i = 0; i < n; i++) {
+            update(new PodsStatus(packed[i], timestamps[i]));
+        }
+    }
+
+    public synchronized void update(PodsStatus status) {
+        update(LEFT, status.getTimestamp(), status.getLeftLevel(), status.isLeftCharging());
+        update(RIGHT, status.getTimestamp(), status.getRightLevel(), status.isRightCharging());
+        update(CASE, status.getTimestamp(), status.getCaseLevel(), status.isCaseCharging());
+    }
+
+    public synchronized void update(int component, long timestamp, int level, boolean charging) {
+        if (level > PodsStatus.MAX_CONNECTED_STATUS) {
+            reset(component, timestamp);
+            return;
+        }
+        if (level == lastLevel[component] && charging == lastCharging[component]) {
+            return;
+        }
+        if (lastLevel[component] < 0 || charging != lastCharging[component] || (charging ? level < lastLevel[component] : level > lastLevel[component])) {
+            reset(component, timestamp);
+        }
+        lastLevel[component] = level;
+        lastCharging[component] = charging;
+        add(component, (timestamp - base[component]) / MINUTE, level);
+        estimate[component] = level == (charging ? PodsStatus.MAX_CONNECTED_STATUS : 0) ? -1 : fit(component, charging);
+    }
+
+    /**
+     * Minutes until the component is empty (or full if it's charging), or -1 if there's no estimate yet
+     */
+    public synchronized long getMinutes(int component, long now) {
+        long t = estimate[component];
+        if (t < 0) {
+            return -1;
+        }
+        return Math.max(0, (t - now) / 60000);
+    }
+
+    private void reset(int component, long timestamp) {
+        head[component] = 0;
+        size[component] = 0;
+        base[component] = timestamp;
+        lastLevel[component] = -1;
+        lastCharging[component] = false;
+        sumT[component] = 0;
+        sumL[component] = 0;
+        sumTT[component] = 0;
+        sumTL[component] = 0;
+        estimate[component] = -1;
+    }
+
+    private void add(int c, double t, int level) {
+        int i = c * WINDOW + head[c];
+        if (size[c] == WINDOW) {
+            double oldT = times[i];
+            int oldL = levels[i];
+            sumT[c] -= oldT;
+            sumL[c] -= oldL;
+            sumTT[c] -= oldT * oldT;
+            sumTL[c] -= oldT * oldL;
+        } else {
+            size[c]++;
+        }
+        times[i] = t;
+        levels[i] = level;
+        sumT[c] += t;
+        sumL[c] += level;
+        sumTT[c] += t * t;
+        sumTL[c] += t * level;
+        head[c] = (head[c] + 1) % WINDOW;
+    }
+
+    private long fit(int c, boolean charging) {
+        int n = size[c];
+        if (n < 2) {
+            return -1;
+        }
+        double denominator = n * sumTT[c] - sumT[c] * sumT[c];
+        if (denominator <= 0) {
+            return -1;
+        }
+        double slope = (n * sumTL[c] - sumT[c] * sumL[c]) / denominator; //levels per minute
+        double intercept = (sumL[c] - slope * sumT[c]) / n;
+        if (charging ? slope <= 0 : slope >= 0) {
+            return -1;
+        }
+        int target = charging ? PodsStatus.MAX_CONNECTED_STATUS : 0;
+        return base[c] + (long) ((target - intercept) / slope * MINUTE);
+    }
+}
@@ -0,0 +1,168 @@
+package com.dosse.airpods;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Battery history, kept in a fixed size ring file that is memory mapped, so appending a sample is just a few memory writes.
+ *
+ * Every record is RECORD_SIZE bytes: the timestamp (long), and the packed status (int, see PodsStatus.pack), which contains
+ * left, right, case, charge bits and model. When the file is full, the oldest records are overwritten.
+ * A sample with the same status as the previous one is not written at all, so only changes are stored.
+ * The OS writes the dirty pages back to the file on its own, flush only forces it (when the screen turns off and when the service is destroyed).
+ *
+ * Header: magic (int), version (int), capacity (int), unused (int), records ever written (long), records in the file (long)
+ *
+ * All methods are synchronized, they're called from the scan callback and only rarely from somewhere else.
+ */
+public class BatteryHistory implements Closeable {
+
+    public static final String FILE_NAME = "history.bin";
+    //a heavy day of use writes about 90 records (see BatteryHistoryBenchmark.day), this keeps a year of them with some margin, ~560KB
+    public static final int DEFAULT_CAPACITY = 365 * 128;
+
+    private static final int MAGIC = 0x4F504248;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 12;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_WRITTEN = 16;
+    private static final int OFFSET_COUNT = 24;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final int capacity;
+    private long written;
+    private int count;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private int lastPacked = -1;
+
+    /**
+     * Opens the history file, or creates it if it doesn't exist or is not valid (in which case the old content is lost)
+     */
+    public BatteryHistory(File f, int capacity) throws IOException {
+        this.capacity = capacity;
+        file = new RandomAccessFile(f, "rw");
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        boolean valid = file.length() == size;
+        file.setLength(size);
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (valid && map.getInt(0) == MAGIC && map.getInt(4) == VERSION && map.getInt(OFFSET_CAPACITY) == capacity) {
+            written = map.getLong(OFFSET_WRITTEN);
+            count = (int) Math.min(map.getLong(OFFSET_COUNT), capacity);
+            if (count > 0) {
+                int last = position(written - 1);
+                lastTimestamp = map.getLong(last);
+                lastPacked = map.getInt(last + 8);
+            }
+        } else {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(OFFSET_CAPACITY, capacity);
+            map.putLong(OFFSET_WRITTEN, 0);
+            map.putLong(OFFSET_COUNT, 0);
+        }
+    }
+
+    /**
+     * Adds a sample, unless its status is the same as the last one.
+     * Timestamps must not go backwards: if the clock was changed, the timestamp of the last sample is used instead.
+     *
+     * @return true if the sample was written
+     */
+    public synchronized boolean append(long timestamp, long packed) {
+        if (count > 0 && (int) packed == lastPacked) {
+            return false;
+        }
+        if (timestamp < lastTimestamp) {
+            timestamp = lastTimestamp;
+        }
+        int pos = position(written);
+        map.putLong(pos, timestamp);
+        map.putInt(pos + 8, (int) packed);
+        written++;
+        if (count < capacity) {
+            count++;
+        }
+        map.putLong(OFFSET_WRITTEN, written);
+        map.putLong(OFFSET_COUNT, count);
+        lastTimestamp = timestamp;
+        lastPacked = (int) packed;
+        return true;
+    }
+
+    /**
+     * Reads the samples between from and to (inclusive), downsampled to at most maxPoints for display:
+     * the range is split in maxPoints intervals of the same length, and only the last sample of each interval is returned.
+     *
+     * @param timestamps receives the timestamps, must have room for maxPoints samples
+     * @param packed     receives the packed statuses, must have room for maxPoints samples
+     * @return number of samples returned
+     */
+    public synchronized int query(long from, long to, int maxPoints, long[] timestamps, long[] packed) {
+        if (count == 0 || maxPoints <= 0 || to < from) {
+            return 0;
+        }
+        long interval = (to - from) / maxPoints + 1;
+        long oldest = written - count;
+        //binary search for the first sample not older than from
+        long lo = oldest, hi = written;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (map.getLong(position(mid)) < from) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int n = 0;
+        long lastInterval = -1;
+        for (long i = lo; i < written; i++) {
+            int pos = position(i);
+            long timestamp = map.getLong(pos);
+            if (timestamp > to) {
+                break;
+            }
+            long current = (timestamp - from) / interval;
+            if (current != lastInterval) {
+                n++;
+                lastInterval = current;
+            }
+            timestamps[n - 1] = timestamp;
+            packed[n - 1] = map.getInt(pos + 8);
+        }
+        return n;
+    }
+
+    /**
+     * Number of samples in the file
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Forces the samples written so far to the file
+     */
+    public synchronized void flush() {
+        map.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        map.force();
+        file.close();
+    }
+
+    private int position(long index) {
+        return HEADER_SIZE + (int) (index % capacity) * RECORD_SIZE;
+    }
+}
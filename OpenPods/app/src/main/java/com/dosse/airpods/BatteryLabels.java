@@ -0,0 +1,102 @@
+package com.dosse.airpods;
+
+import android.content.Context;
+
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * The texts shown under the pods and the case, and the content descriptions read by accessibility services.
+ *
+ * There are only 11 levels, charging or not, plus disconnected, so all the texts are formatted once for the current locale
+ * and the same instances are returned every time (NotificationBuilder compares them to what it rendered last).
+ * The tables are built again when Locale.getDefault changes, which is the only time anything is allocated.
+ */
+public class BatteryLabels {
+
+    public static final int LEFT = 0;
+    public static final int RIGHT = 1;
+    public static final int CASE = 2;
+
+    private static final int LEVELS = PodsStatus.MAX_CONNECTED_STATUS + 1;
+
+    private static final class Table {
+        final Locale locale;
+        final String[] texts = new String[LEVELS * 2];
+        final String[] descriptions = new String[3 * (LEVELS * 2 + 1)]; //the last one of each component is for disconnected
+
+        Table(Context context, Locale locale) {
+            this.locale = locale;
+            NumberFormat percent = NumberFormat.getPercentInstance(locale);
+            for(int level = 0; level < LEVELS; level++) {
+                //5%, 15%, ... 95%, then 100% (never with +)
+                String text = percent.format(level == PodsStatus.MAX_CONNECTED_STATUS ? 1 : level * 0.1 + 0.05);
+                texts[level * 2] = text;
+                texts[level * 2 + 1] = level == PodsStatus.MAX_CONNECTED_STATUS ? text : text + "+";
+            }
+            if(context == null) {
+                return; //init wasn't called, only the texts are available
+            }
+            String[] names = {
+                    context.getString(R.string.leftPod), context.getString(R.string.rightPod), context.getString(R.string.podCase)
+            };
+            for(int level = 0; level < LEVELS; level++) {
+                String text = texts[level * 2];
+                for(int c = 0; c < names.length; c++) {
+                    descriptions[c * (LEVELS * 2 + 1) + level * 2] = context.getString(R.string.batteryDescription, names[c], text);
+                    descriptions[c * (LEVELS * 2 + 1) + level * 2 + 1] = context.getString(R.string.batteryDescriptionCharging, names[c], text);
+                }
+            }
+            for(int c = 0; c < names.length; c++) {
+                descriptions[c * (LEVELS * 2 + 1) + LEVELS * 2] = names[c];
+            }
+        }
+    }
+
+    private static Context appContext = null;
+    private static volatile Table table = null;
+
+    /**
+     * Must be called before the other methods, the context is used to read the translated strings
+     */
+    public static synchronized void init(Context context) {
+        if(appContext == null) {
+            appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            table = null; //may have been built without the descriptions
+        }
+    }
+
+    /**
+     * Text of a level (0-10, or DISCONNECTED_STATUS for an empty text)
+     */
+    public static String getText(int level, boolean charging) {
+        if(level > PodsStatus.MAX_CONNECTED_STATUS) {
+            return "";
+        }
+        return getTable().texts[level * 2 + (charging ? 1 : 0)];
+    }
+
+    /**
+     * Content description of a component (LEFT, RIGHT or CASE) with a level (0-10, or DISCONNECTED_STATUS for just its name).
+     * Null if init wasn't called.
+     */
+    public static String getDescription(int component, int level, boolean charging) {
+        int index = level > PodsStatus.MAX_CONNECTED_STATUS ? LEVELS * 2 : level * 2 + (charging ? 1 : 0);
+        return getTable().descriptions[component * (LEVELS * 2 + 1) + index];
+    }
+
+    private static Table getTable() {
+        Table t = table;
+        Locale locale = Locale.getDefault();
+        if(t == null || t.locale != locale) {
+            synchronized (BatteryLabels.class) {
+                t = table;
+                if(t == null || !t.locale.equals(locale)) {
+                    t = new Table(appContext, locale);
+                }
+                table = t;
+            }
+        }
+        return t;
+    }
+}
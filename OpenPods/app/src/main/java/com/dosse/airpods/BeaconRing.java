@@ -0,0 +1,153 @@
+package com.dosse.airpods;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free single producer, single consumer queue of beacons, used to hand them from the scan callback to the thread that
+ * processes them without allocating anything.
+ *
+ * Every entry is copied in preallocated arrays: timestamp, address, rssi, the AIRPOD_DATA_LENGTH bytes of manufacturer data,
+ * a tag (the BluetoothDevice, which is only a reference) and when the scan callback received it (for Metrics).
+ * The producer publishes an entry by advancing tail, the consumer copies the entry at head and then claims it
+ * by advancing head with a compare-and-set.
+ * When the queue is full, the producer drops the oldest entry by advancing head itself, so a stalled consumer never
+ * blocks the scan callback and always finds the newest beacons when it catches up. If the consumer was copying that entry,
+ * its compare-and-set fails and it moves on to the next one.
+ *
+ * offer must only be called by one thread, poll and the getters by another one.
+ */
+public class BeaconRing {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final int mask;
+    private final long[] timestamps;
+    private final long[] addresses;
+    private final int[] rssis;
+    private final byte[] data;
+    private final Object[] tags;
+    private final long[] receivedTimes;
+    private final int dataLength;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    //entry returned by the last poll, only used by the consumer
+    private long timestamp;
+    private long address;
+    private int rssi;
+    private final byte[] entryData;
+    private Object tag;
+    private long receivedNs;
+
+    /**
+     * @param capacity must be a power of 2
+     */
+    public BeaconRing(int capacity, int dataLength) {
+        if(Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of 2");
+        }
+        mask = capacity - 1;
+        timestamps = new long[capacity];
+        addresses = new long[capacity];
+        rssis = new int[capacity];
+        data = new byte[capacity * dataLength];
+        tags = new Object[capacity];
+        receivedTimes = new long[capacity];
+        this.dataLength = dataLength;
+        entryData = new byte[dataLength];
+    }
+
+    /**
+     * Adds a beacon. Returns false if the oldest entry had to be dropped to make room for it.
+     */
+    public boolean offer(long timestamp, long address, int rssi, byte[] beaconData, Object tag, long receivedNs) {
+        long t = tail.get();
+        boolean room = true;
+        while (true) {
+            long h = head.get();
+            if (t - h <= mask) {
+                break;
+            }
+            if (head.compareAndSet(h, h + 1)) {
+                dropped.incrementAndGet();
+                Metrics.increment(Metrics.BEACONS_DROPPED);
+                room = false;
+                break;
+            }
+        }
+        int i = (int) t & mask;
+        timestamps[i] = timestamp;
+        addresses[i] = address;
+        rssis[i] = rssi;
+        System.arraycopy(beaconData, 0, data, i * dataLength, dataLength);
+        tags[i] = tag;
+        receivedTimes[i] = receivedNs;
+        tail.lazySet(t + 1);
+        return room;
+    }
+
+    /**
+     * Takes the oldest entry, which can then be read with the getters. Returns false if the queue is empty.
+     */
+    public boolean poll() {
+        while (true) {
+            long h = head.get();
+            if (h == tail.get()) {
+                return false;
+            }
+            int i = (int) h & mask;
+            timestamp = timestamps[i];
+            address = addresses[i];
+            rssi = rssis[i];
+            System.arraycopy(data, i * dataLength, entryData, 0, dataLength);
+            tag = tags[i];
+            receivedNs = receivedTimes[i];
+            if (head.compareAndSet(h, h + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * Manufacturer data of the entry, overwritten by the next poll
+     */
+    public byte[] getData() {
+        return entryData;
+    }
+
+    public Object getTag() {
+        return tag;
+    }
+
+    /**
+     * When the scan callback received the entry, see PodsStatusScanCallback.getReceivedNs
+     */
+    public long getReceivedNs() {
+        return receivedNs;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Number of entries dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
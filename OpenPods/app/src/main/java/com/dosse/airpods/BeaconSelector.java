@@ -0,0 +1,107 @@
+package com.dosse.airpods;
+
+import java.util.Arrays;
+
+/**
+ * Decides which address we're listening to, so that the status doesn't flip back and forth between two pairs of AirPods
+ * at a similar distance, or appear and disappear when the signal is around the threshold.
+ *
+ * - The RSSI of each address is smoothed with an exponential moving average (alpha = ALPHA)
+ * - An address is selected only when its smoothed RSSI is at least enterRssi, and stays selected until it drops below exitRssi
+ *     (or we don't hear from it for maxAgeNs)
+ * - Another address takes over only if it is at least SWITCH_MARGIN db stronger, and the current one has been selected for dwellNs
+ *
+ * State is kept in primitive arrays indexed by the slots of a BeaconWindow with the same number of addresses,
+ * the address of each slot is remembered so that a slot reused for another address starts over.
+ *
+ * This class is not thread safe, it is meant to be used from the scan callback only.
+ */
+public class BeaconSelector {
+
+    public static final float ALPHA = 0.25f;
+    public static final int SWITCH_MARGIN = 6;
+    public static final int HYSTERESIS = 5;
+    public static final long DEFAULT_DWELL_NS = 5000000000L; //5s
+
+    private static final long NO_ADDRESS = -1;
+
+    private final int enterRssi;
+    private final int exitRssi;
+    private final long dwellNs;
+    private final long maxAgeNs;
+
+    private final long[] addresses;
+    private final float[] smoothed;
+    private final long[] lastSeen;
+
+    private int current = -1;
+    private long currentAddress = NO_ADDRESS;
+    private long currentSince;
+    private long lastSelectedAddress = NO_ADDRESS; //not cleared when the current address is lost
+    private long switches = 0;
+
+    /**
+     * @param maxAddresses number of slots of the BeaconWindow
+     * @param enterRssi    an address must be at least this strong to be selected, it is deselected when it drops HYSTERESIS db below this
+     */
+    public BeaconSelector(int maxAddresses, int enterRssi, long dwellNs, long maxAgeNs) {
+        this.enterRssi = enterRssi;
+        this.exitRssi = enterRssi - HYSTERESIS;
+        this.dwellNs = dwellNs;
+        this.maxAgeNs = maxAgeNs;
+        addresses = new long[maxAddresses];
+        smoothed = new float[maxAddresses];
+        lastSeen = new long[maxAddresses];
+        Arrays.fill(addresses, NO_ADDRESS);
+    }
+
+    /**
+     * Adds a beacon received in this slot at timestampNs, and returns the selected slot, or -1 if no address is strong enough
+     */
+    public int update(int slot, long address, int rssi, long timestampNs) {
+        if (addresses[slot] != address) {
+            addresses[slot] = address;
+            smoothed[slot] = rssi;
+        } else {
+            smoothed[slot] += ALPHA * (rssi - smoothed[slot]);
+        }
+        lastSeen[slot] = timestampNs;
+        if (current >= 0 && (addresses[current] != currentAddress || timestampNs - lastSeen[current] > maxAgeNs || smoothed[current] < exitRssi)) {
+            current = -1;
+            currentAddress = NO_ADDRESS;
+        }
+        if (slot != current && smoothed[slot] >= enterRssi &&
+                (current < 0 || (smoothed[slot] >= smoothed[current] + SWITCH_MARGIN && timestampNs - currentSince >= dwellNs))) {
+            if (lastSelectedAddress != NO_ADDRESS && lastSelectedAddress != address) {
+                switches++;
+                Metrics.increment(Metrics.BEACON_SWITCHES);
+            }
+            current = slot;
+            currentAddress = address;
+            currentSince = timestampNs;
+            lastSelectedAddress = address;
+        }
+        return current;
+    }
+
+    /**
+     * Smoothed RSSI of the address in this slot
+     */
+    public float getSmoothedRssi(int slot) {
+        return smoothed[slot];
+    }
+
+    /**
+     * Number of times the selection moved from an address to another one
+     */
+    public long getSwitches() {
+        return switches;
+    }
+
+    public void clear() {
+        Arrays.fill(addresses, NO_ADDRESS);
+        current = -1;
+        currentAddress = NO_ADDRESS;
+        lastSelectedAddress = NO_ADDRESS;
+    }
+}
@@ -0,0 +1,153 @@
+package com.dosse.airpods;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static com.dosse.airpods.Logger.error;
+import static com.dosse.airpods.PodsStatusScanCallback.AIRPOD_DATA_LENGTH;
+
+/**
+ * Binary recording of the beacons seen by PodsStatusScanCallback, so that what the scanner saw in the field can be
+ * fed again through the same code, on the phone or on the JVM (see replay).
+ *
+ * The file starts with MAGIC and VERSION (int each), followed by records of RECORD_SIZE bytes:
+ * - timestamp of the beacon, elapsed realtime in nanoseconds (long)
+ * - hash of the advertised address (long, 48 bits), so that traces can be shared without the real addresses
+ * - RSSI (byte)
+ * - manufacturer specific data (27 bytes)
+ *
+ * Recording a beacon copies it into a buffer, the file is written every BUFFER_SIZE bytes.
+ */
+public class BeaconTrace {
+
+    public static final String FILE_NAME = "trace.bin";
+    public static final int MAGIC = 0x4F504254;
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 8 + 8 + 1 + AIRPOD_DATA_LENGTH;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static class Writer implements Closeable {
+        private final OutputStream out;
+        private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        private boolean closed = false;
+        private long count = 0;
+
+        public Writer(File f) throws IOException {
+            out = new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE);
+            record.putInt(0, MAGIC);
+            record.putInt(4, VERSION);
+            out.write(record.array(), 0, 8);
+        }
+
+        public synchronized void write(long timestampNs, long address, int rssi, byte[] data) {
+            if(closed) {
+                return;
+            }
+            record.putLong(0, timestampNs);
+            record.putLong(8, hashAddress(address));
+            record.put(16, (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rssi)));
+            System.arraycopy(data, 0, record.array(), 17, AIRPOD_DATA_LENGTH);
+            try {
+                out.write(record.array(), 0, RECORD_SIZE);
+                count++;
+            } catch (IOException e) {
+                error(e);
+                closed = true;
+            }
+        }
+
+        /**
+         * Number of beacons recorded
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * Receives the beacons read from a trace
+     */
+    public interface Listener {
+        void onBeacon(long timestampNs, long address, int rssi, byte[] data);
+    }
+
+    /**
+     * Reads a trace and passes every beacon to listener. The same data array is reused for all the beacons.
+     *
+     * @param realtime if true, waits between beacons as long as they were apart when they were recorded; if false, goes as fast as possible
+     * @return number of beacons read
+     */
+    public static long read(InputStream in, Listener listener, boolean realtime) throws IOException, InterruptedException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        if(data.readInt() != MAGIC || data.readInt() != VERSION) {
+            throw new IOException("Not a beacon trace");
+        }
+        byte[] record = new byte[RECORD_SIZE];
+        byte[] payload = new byte[AIRPOD_DATA_LENGTH];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long count = 0;
+        long firstTimestamp = 0;
+        long start = System.nanoTime();
+        while(true) {
+            try {
+                data.readFully(record);
+            } catch (EOFException e) {
+                return count;
+            }
+            long timestampNs = buffer.getLong(0);
+            if(realtime) {
+                if(count == 0) {
+                    firstTimestamp = timestampNs;
+                }
+                long wait = (timestampNs - firstTimestamp) - (System.nanoTime() - start);
+                if(wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+            System.arraycopy(record, 17, payload, 0, AIRPOD_DATA_LENGTH);
+            listener.onBeacon(timestampNs, buffer.getLong(8), record[16], payload);
+            count++;
+        }
+    }
+
+    /**
+     * Feeds a trace through callback, as if the beacons came from the scanner. Works on the JVM.
+     *
+     * @return number of beacons read
+     */
+    public static long replay(File f, PodsStatusScanCallback callback, boolean realtime) throws IOException, InterruptedException {
+        try (InputStream in = new FileInputStream(f)) {
+            callback.resetReplayClock();
+            return read(in, callback::replay, realtime);
+        }
+    }
+
+    /**
+     * Mixes the 48 bits of the address so that different addresses stay different, but the real address is not in the trace
+     */
+    static long hashAddress(long address) {
+        if(address < 0) {
+            return address;
+        }
+        long h = address * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 29;
+        return h >>> 16;
+    }
+}
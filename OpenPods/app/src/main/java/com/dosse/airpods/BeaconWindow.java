@@ -0,0 +1,246 @@
+package com.dosse.airpods;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track of the beacons received in the last maxAgeNs nanoseconds, grouped by advertised address.
+ *
+ * For every address we only keep the primitive RSSI and timestamp of its beacons in a monotonic queue
+ * (ring buffer where the RSSI is decreasing from head to tail), so that:
+ * - the strongest beacon of an address is always at the head of its queue
+ * - expired beacons are dropped from the head, every beacon is added and removed at most once (amortized O(1))
+ * - the strongest beacon in the window is found looking at the head of each address, which are bounded by maxAddresses
+ *
+ * The latest payload and a tag (the BluetoothDevice) are also kept for each address,
+ * so that we can decode the strongest beacon even if it's not the one we just received.
+ *
+ * When all address slots are in use, the address that has been quiet for the longest time is evicted.
+ * When the queue of an address is full, its oldest entry is dropped.
+ *
+ * This class is not thread safe, it is meant to be used from the scan callback only.
+ */
+public class BeaconWindow<T> {
+
+    private static final long NO_ADDRESS = -1;
+
+    private final int maxAddresses;
+    private final int capacity;
+    private final int dataLength;
+    private final long maxAgeNs;
+
+    private final long[] addresses;
+    private final long[] lastSeen;
+    private final int[] lastRssi;
+    private final byte[] lastData;
+    private final Object[] tags;
+
+    //monotonic queue of each address: slot * capacity + (head + i) % capacity
+    private final long[] timestamps;
+    private final int[] rssis;
+    private final int[] heads;
+    private final int[] sizes;
+    private int lastSlot = -1;
+
+    public BeaconWindow(int maxAddresses, int capacity, int dataLength, long maxAgeNs) {
+        this.maxAddresses = maxAddresses;
+        this.capacity = capacity;
+        this.dataLength = dataLength;
+        this.maxAgeNs = maxAgeNs;
+        addresses = new long[maxAddresses];
+        lastSeen = new long[maxAddresses];
+        lastRssi = new int[maxAddresses];
+        lastData = new byte[maxAddresses * dataLength];
+        tags = new Object[maxAddresses];
+        timestamps = new long[maxAddresses * capacity];
+        rssis = new int[maxAddresses * capacity];
+        heads = new int[maxAddresses];
+        sizes = new int[maxAddresses];
+        Arrays.fill(addresses, NO_ADDRESS);
+    }
+
+    /**
+     * Adds a beacon to the window, drops the expired ones and returns the slot of the address with the strongest beacon
+     * in the window, or -1 if the window is empty. On equal RSSI, the address of this beacon wins.
+     *
+     * @param address advertised address of the beacon, see parseAddress
+     * @param timestampNs time when the beacon was received, in the elapsedRealtimeNanos timebase
+     * @param rssi signal strength of the beacon
+     * @param data manufacturer specific data of the beacon, dataLength bytes
+     * @param tag object to keep together with the latest payload of this address
+     * @param nowNs current time, in the elapsedRealtimeNanos timebase
+     */
+    public int add(long address, long timestampNs, int rssi, byte[] data, T tag, long nowNs) {
+        if (address == NO_ADDRESS) {
+            lastSlot = -1;
+            return -1;
+        }
+        int slot = -1;
+        int free = -1;
+        int stalest = -1;
+        int best = -1;
+        int bestRssi = Integer.MIN_VALUE;
+        long minTimestamp = nowNs - maxAgeNs;
+        for (int i = 0; i < maxAddresses; i++) {
+            if (addresses[i] == NO_ADDRESS) {
+                if (free < 0) {
+                    free = i;
+                }
+                continue;
+            }
+            if (addresses[i] == address) {
+                slot = i;
+                continue;
+            }
+            expire(i, minTimestamp);
+            if (sizes[i] == 0) {
+                clear(i);
+                if (free < 0) {
+                    free = i;
+                }
+                continue;
+            }
+            if (stalest < 0 || lastSeen[i] < lastSeen[stalest]) {
+                stalest = i;
+            }
+            int headRssi = rssis[i * capacity + heads[i]];
+            if (headRssi > bestRssi) {
+                bestRssi = headRssi;
+                best = i;
+            }
+        }
+        if (slot < 0) {
+            slot = free >= 0 ? free : stalest;
+            clear(slot);
+            addresses[slot] = address;
+            if (slot == best) {
+                //we evicted the strongest address, look for the next one
+                best = -1;
+                bestRssi = Integer.MIN_VALUE;
+                for (int i = 0; i < maxAddresses; i++) {
+                    if (i != slot && sizes[i] > 0 && rssis[i * capacity + heads[i]] > bestRssi) {
+                        bestRssi = rssis[i * capacity + heads[i]];
+                        best = i;
+                    }
+                }
+            }
+        }
+        push(slot, timestampNs, rssi);
+        expire(slot, minTimestamp);
+        lastSeen[slot] = timestampNs;
+        lastRssi[slot] = rssi;
+        System.arraycopy(data, 0, lastData, slot * dataLength, dataLength);
+        tags[slot] = tag;
+        lastSlot = slot;
+        if (sizes[slot] > 0 && rssis[slot * capacity + heads[slot]] >= bestRssi) {
+            best = slot;
+        }
+        return best;
+    }
+
+    /**
+     * Slot of the address of the last beacon passed to add, or -1 if it was not added
+     */
+    public int getLastSlot() {
+        return lastSlot;
+    }
+
+    public long getAddress(int slot) {
+        return addresses[slot];
+    }
+
+    /**
+     * Strongest RSSI received from the address in this slot, during the window
+     */
+    public int getStrongestRssi(int slot) {
+        return rssis[slot * capacity + heads[slot]];
+    }
+
+    /**
+     * RSSI of the latest beacon received from the address in this slot
+     */
+    public int getLastRssi(int slot) {
+        return lastRssi[slot];
+    }
+
+    /**
+     * Copies the payload of the latest beacon received from the address in this slot into dst
+     */
+    public void copyLastData(int slot, byte[] dst) {
+        System.arraycopy(lastData, slot * dataLength, dst, 0, dataLength);
+    }
+
+    @SuppressWarnings("unchecked")
+    public T getTag(int slot) {
+        return (T) tags[slot];
+    }
+
+    /**
+     * Number of addresses that currently have a slot
+     */
+    public int getAddressCount() {
+        int count = 0;
+        for (long address : addresses) {
+            if (address != NO_ADDRESS) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void clear() {
+        for (int i = 0; i < maxAddresses; i++) {
+            clear(i);
+        }
+    }
+
+    private void push(int slot, long timestampNs, int rssi) {
+        int base = slot * capacity;
+        //beacons weaker than this one will never be the strongest again, drop them from the tail
+        while (sizes[slot] > 0 && rssis[base + (heads[slot] + sizes[slot] - 1) % capacity] <= rssi) {
+            sizes[slot]--;
+        }
+        if (sizes[slot] == capacity) {
+            heads[slot] = (heads[slot] + 1) % capacity;
+            sizes[slot]--;
+        }
+        int tail = base + (heads[slot] + sizes[slot]) % capacity;
+        timestamps[tail] = timestampNs;
+        rssis[tail] = rssi;
+        sizes[slot]++;
+    }
+
+    private void expire(int slot, long minTimestamp) {
+        int base = slot * capacity;
+        while (sizes[slot] > 0 && timestamps[base + heads[slot]] < minTimestamp) {
+            heads[slot] = (heads[slot] + 1) % capacity;
+            sizes[slot]--;
+        }
+    }
+
+    private void clear(int slot) {
+        addresses[slot] = NO_ADDRESS;
+        heads[slot] = 0;
+        sizes[slot] = 0;
+        tags[slot] = null;
+    }
+
+    /**
+     * Converts a bluetooth address like "AA:BB:CC:DD:EE:FF" to a 48 bit number, without allocating anything.
+     * Returns -1 if the address is not valid.
+     */
+    public static long parseAddress(String address) {
+        if (address == null) {
+            return NO_ADDRESS;
+        }
+        long ret = 0;
+        int digits = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int d = Character.digit(address.charAt(i), 16);
+            if (d >= 0) {
+                ret = (ret << 4) | d;
+                digits++;
+            }
+        }
+        return digits == 12 ? ret : NO_ADDRESS;
+    }
+}
@@ -3,9 +3,28 @@ package com.dosse.airpods;
 import android.bluetooth.BluetoothDevice;
 import android.os.ParcelUuid;
 
+import java.lang.reflect.Method;
+
 import static com.dosse.airpods.Logger.error;
 
+/**
+ * Name, battery level and AirPods UUID check of the bonded AirPods.
+ *
+ * Beacons come from a random address that changes every few minutes and isn't the bonded device, so there's nothing to read
+ * from the device of a ScanResult. Instead, PodsService tells us which bonded device connected (see setConnected), and the
+ * statuses get the info of that device. Getting it requires reflection and calls to the bluetooth service, so:
+ * - The hidden methods are looked up only once per process (and the failure is only logged once on ROMs that don't have them)
+ * - The info is read when the device connects, and again only when BluetoothReceiver sees that the same bonded device
+ *     was renamed, (un)paired or reported a new battery level. The scan callback only reads a field.
+ */
 public class BluetoothDeviceInfo {
+
+    private static volatile BluetoothDeviceInfo connected = null;
+
+    private static boolean methodsResolved = false;
+    private static Method getAliasName = null;
+    private static Method getBatteryLevel = null;
+
     private final String address;
     private final String name;
     private final boolean uuids;
@@ -34,28 +53,75 @@ public class BluetoothDeviceInfo {
         return false;
     }
 
-    public BluetoothDeviceInfo(BluetoothDevice device) {
+    /**
+     * The bonded AirPods connected (checkUUID is true for this device), or null if they disconnected.
+     * Reads the info of the device, call it on the worker thread.
+     */
+    public static void setConnected(BluetoothDevice device) {
+        connected = device == null ? null : new BluetoothDeviceInfo(device);
+    }
+
+    /**
+     * Info of the connected bonded AirPods, or null if they're not connected. Does no IPC.
+     */
+    public static BluetoothDeviceInfo getConnected() {
+        return connected;
+    }
+
+    /**
+     * The device was renamed, (un)paired or its battery level changed: if it's the connected one, read its info again
+     */
+    public static void invalidate(BluetoothDevice device) {
+        BluetoothDeviceInfo info = connected;
+        if(info != null && info.address.equals(device.getAddress())) {
+            connected = new BluetoothDeviceInfo(device);
+        }
+    }
+
+    private BluetoothDeviceInfo(BluetoothDevice device) {
+        resolveMethods();
         address = device.getAddress();
         name = getName(device);
         uuids = checkUUID(device);
         battery = getBattery(device);
     }
 
-    private String getName(BluetoothDevice device) {
+    private static synchronized void resolveMethods() {
+        if(methodsResolved) {
+            return;
+        }
+        methodsResolved = true;
         try {
-            return (String) device.getClass().getMethod("getAliasName").invoke(device);
+            getAliasName = BluetoothDevice.class.getMethod("getAliasName");
         } catch (Exception e) {
             error(e);
-            return device.getName();
         }
-    }
-
-    private int getBattery(BluetoothDevice device) {
         try {
-            return (int) device.getClass().getMethod("getBatteryLevel").invoke(device);
+            getBatteryLevel = BluetoothDevice.class.getMethod("getBatteryLevel");
         } catch (Exception e) {
             error(e);
-            return -1;
         }
     }
+
+    private String getName(BluetoothDevice device) {
+        if(getAliasName != null) {
+            try {
+                return (String) getAliasName.invoke(device);
+            } catch (Exception e) {
+                error(e);
+            }
+        }
+        return device.getName();
+    }
+
+    private int getBattery(BluetoothDevice device) {
+        if(getBatteryLevel != null) {
+            try {
+                return (int) getBatteryLevel.invoke(device);
+            } catch (Exception e) {
+                error(e);
+            }
+        }
+        return -1;
+    }
 }
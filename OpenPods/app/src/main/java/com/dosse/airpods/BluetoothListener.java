@@ -2,27 +2,47 @@ package com.dosse.airpods;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothProfile;
+import android.os.Handler;
 
+/**
+ * The proxy calls back on the main thread. The callbacks are posted to handler, since getConnectedDevices and whatever
+ * onConnect does with the devices are IPCs to the bluetooth service.
+ */
 public abstract class BluetoothListener implements BluetoothProfile.ServiceListener {
 
+    private final Handler handler;
+
+    public BluetoothListener(Handler handler) {
+        this.handler = handler;
+    }
+
     public abstract boolean onConnect(BluetoothDevice bluetoothDevice);
     public abstract void onDisconnect();
 
+    /**
+     * The proxy connected, but onConnect returned false for all the connected devices
+     */
+    public void onNotConnected() {
+    }
+
     @Override
     public void onServiceConnected(int profile, BluetoothProfile bluetoothProfile) {
         if(profile == BluetoothProfile.HEADSET){
-            for(BluetoothDevice device : bluetoothProfile.getConnectedDevices()){
-                if(onConnect(device)){
-                    break;
+            handler.post(() -> {
+                for(BluetoothDevice device : bluetoothProfile.getConnectedDevices()){
+                    if(onConnect(device)){
+                        return;
+                    }
                 }
-            }
+                onNotConnected();
+            });
         }
     }
 
     @Override
     public void onServiceDisconnected(int profile) {
         if(profile == BluetoothProfile.HEADSET){
-            onDisconnect();
+            handler.post(this::onDisconnect);
         }
     }
 }
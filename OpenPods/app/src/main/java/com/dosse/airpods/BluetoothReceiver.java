@@ -2,6 +2,7 @@ package com.dosse.airpods;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadset;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -14,6 +15,18 @@ public abstract class BluetoothReceiver extends BroadcastReceiver {
     public abstract void onConnect(BluetoothDevice bluetoothDevice);
     public abstract void onDisconnect(BluetoothDevice bluetoothDevice);
 
+    /**
+     * The device reported its battery level (0-100) over HFP, see HeadsetBattery
+     */
+    public void onBatteryLevel(BluetoothDevice bluetoothDevice, int level) {
+    }
+
+    /**
+     * The device told us its model (same id as in byte 3 of the beacon) when the HFP connection was made
+     */
+    public void onModel(BluetoothDevice bluetoothDevice, int model) {
+    }
+
     /**
      * When the service is created, we register to get as many bluetooth and airpods related events as possible.
      * ACL_CONNECTED and ACL_DISCONNECTED should have been enough, but you never know with android these days.
@@ -30,6 +43,7 @@ public abstract class BluetoothReceiver extends BroadcastReceiver {
         intentFilter.addAction("android.bluetooth.headset.action.VENDOR_SPECIFIC_HEADSET_EVENT");
         intentFilter.addAction("android.bluetooth.a2dp.profile.action.CONNECTION_STATE_CHANGED");
         intentFilter.addAction("android.bluetooth.a2dp.profile.action.PLAYING_STATE_CHANGED");
+        intentFilter.addAction(HeadsetBattery.ACTION_BATTERY_LEVEL_CHANGED);
         intentFilter.addCategory("android.bluetooth.headset.intent.category.companyid.76");
         return intentFilter;
     }
@@ -55,6 +69,30 @@ public abstract class BluetoothReceiver extends BroadcastReceiver {
                     BluetoothDevice.ACTION_ACL_DISCONNECT_REQUESTED.equals(action)){
                 onDisconnect(bluetoothDevice);
             }
+            if(BluetoothDevice.ACTION_NAME_CHANGED.equals(action) ||
+                    BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)){
+                BluetoothDeviceInfo.invalidate(bluetoothDevice);
+            }
+            if(BluetoothHeadset.ACTION_VENDOR_SPECIFIC_HEADSET_EVENT.equals(action)){
+                String cmd = intent.getStringExtra(BluetoothHeadset.EXTRA_VENDOR_SPECIFIC_HEADSET_EVENT_CMD);
+                Object extra = intent.getExtras() == null ? null : intent.getExtras().get(BluetoothHeadset.EXTRA_VENDOR_SPECIFIC_HEADSET_EVENT_ARGS);
+                Object[] args = extra instanceof Object[] ? (Object[]) extra : null;
+                int level = HeadsetBattery.parseAccessoryEvent(cmd, args);
+                if(level >= 0){
+                    onBatteryLevel(bluetoothDevice, level);
+                }
+                int model = HeadsetBattery.parseAccessoryInfo(cmd, args);
+                if(model >= 0){
+                    onModel(bluetoothDevice, model);
+                }
+            }
+            if(HeadsetBattery.ACTION_BATTERY_LEVEL_CHANGED.equals(action)){
+                BluetoothDeviceInfo.invalidate(bluetoothDevice);
+                int level = intent.getIntExtra(HeadsetBattery.EXTRA_BATTERY_LEVEL, -1);
+                if(level >= 0){
+                    onBatteryLevel(bluetoothDevice, level);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,100 @@
+package com.dosse.airpods;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the status of several pairs of AirPods at once, keyed by advertised address and model.
+ *
+ * The table has a fixed number of slots, each with its own StatusCoalescer and BatteryEstimator, so the cost of a beacon
+ * is the same no matter how many devices are around: a scan of the slots, and a comparison with the last status of that device.
+ * When all the slots are in use, the device that has been quiet for the longest time is replaced.
+ * Since the advertised address changes every now and then, a pair of AirPods that changed address simply
+ * gets a new slot, and the old one goes quiet.
+ *
+ * Slots are assigned from the scan callback only. The statuses can be read from any thread.
+ */
+public class DeviceTable {
+
+    public static final int DEFAULT_CAPACITY = 4;
+    private static final long NO_ADDRESS = -1;
+
+    private final long[] addresses;
+    private final int[] models;
+    private final long[] lastSeen;
+    private final StatusCoalescer[] coalescers;
+    private final BatteryEstimator[] estimators;
+
+    public DeviceTable(int capacity) {
+        addresses = new long[capacity];
+        models = new int[capacity];
+        lastSeen = new long[capacity];
+        coalescers = new StatusCoalescer[capacity];
+        estimators = new BatteryEstimator[capacity];
+        Arrays.fill(addresses, NO_ADDRESS);
+        for (int i = 0; i < capacity; i++) {
+            coalescers[i] = new StatusCoalescer();
+            estimators[i] = new BatteryEstimator();
+        }
+    }
+
+    /**
+     * Returns the slot of this device, assigning a new one (and possibly evicting the least recently seen device) if needed
+     */
+    public int getSlot(long address, int model, long now) {
+        int free = -1;
+        int leastRecent = -1;
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i] == address && models[i] == model) {
+                lastSeen[i] = now;
+                return i;
+            }
+            if (addresses[i] == NO_ADDRESS) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (leastRecent < 0 || lastSeen[i] < lastSeen[leastRecent]) {
+                leastRecent = i;
+            }
+        }
+        int slot = free >= 0 ? free : leastRecent;
+        addresses[slot] = address;
+        models[slot] = model;
+        lastSeen[slot] = now;
+        coalescers[slot].reset();
+        estimators[slot].reset();
+        return slot;
+    }
+
+    /**
+     * Address of the device in this slot, or -1 if the slot is empty
+     */
+    public long getAddress(int slot) {
+        return addresses[slot];
+    }
+
+    public int getModel(int slot) {
+        return models[slot];
+    }
+
+    public StatusCoalescer getCoalescer(int slot) {
+        return coalescers[slot];
+    }
+
+    /**
+     * Time remaining for the device in this slot, fed by PodsService
+     */
+    public BatteryEstimator getEstimator(int slot) {
+        return estimators[slot];
+    }
+
+    /**
+     * Last status of the device in this slot, or null if the slot is empty
+     */
+    public PodsStatus getStatus(int slot) {
+        return coalescers[slot].getLast();
+    }
+
+    public int getCapacity() {
+        return addresses.length;
+    }
+}
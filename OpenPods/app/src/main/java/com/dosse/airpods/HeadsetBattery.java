@@ -0,0 +1,165 @@
+package com.dosse.airpods;
+
+/**
+ * Battery level reported by the AirPods over the HFP connection, so that we don't have to scan while they're connected.
+ *
+ * - +IPHONEACCEV (Apple's HFP battery indicator) arrives as a VENDOR_SPECIFIC_HEADSET_EVENT: the arguments are the number of
+ *     pairs followed by key/value pairs, key 1 is the battery level 0-9. Android also turns it into BATTERY_LEVEL_CHANGED (0-100%).
+ * - +XAPL is sent once when the HFP connection is made: the first argument is vendor-product-version, the low byte
+ *     of the product id is the same model id we read from byte 3 of the beacon
+ * - The AirPods only report one level (the lowest of the two pods), and only when it changes. Since they report every change
+ *     while connected, the level stays valid until they disconnect.
+ * - Everything else (the level of the other pod, case level, charge bits and model) is taken
+ *     from the last beacon; we scan again to update it when the last beacon is older than refreshMs (chargingRefreshMs if
+ *     the case was charging), or if we never got a beacon
+ *
+ * Times are System.currentTimeMillis, like the timestamps of PodsStatus.
+ * Methods are synchronized, beacons come from the scan callback and levels from the BluetoothReceiver.
+ */
+public class HeadsetBattery {
+
+    public static final String ACTION_BATTERY_LEVEL_CHANGED = "android.bluetooth.device.action.BATTERY_LEVEL_CHANGED";
+    public static final String EXTRA_BATTERY_LEVEL = "android.bluetooth.device.extra.BATTERY_LEVEL";
+
+    public static final long DEFAULT_REFRESH_MS = 600000; //10 minutes
+    public static final long DEFAULT_CHARGING_REFRESH_MS = 120000; //2 minutes
+
+    private static final int IPHONEACCEV_BATTERY = 1;
+
+    private final long refreshMs;
+    private final long chargingRefreshMs;
+
+    private int level = -1; //0-100, or -1 if we don't have a level
+    private int model = -1; //from +XAPL, used until we get a beacon
+    private PodsStatus lastBeacon = null;
+
+    public HeadsetBattery() {
+        this(DEFAULT_REFRESH_MS, DEFAULT_CHARGING_REFRESH_MS);
+    }
+
+    public HeadsetBattery(long refreshMs, long chargingRefreshMs) {
+        this.refreshMs = refreshMs;
+        this.chargingRefreshMs = chargingRefreshMs;
+    }
+
+    /**
+     * Battery level 0-100 in a +IPHONEACCEV vendor specific headset event, or -1 if there's none
+     */
+    public static int parseAccessoryEvent(String cmd, Object[] args) {
+        if(!"+IPHONEACCEV".equals(cmd) || args == null || args.length < 1) {
+            return -1;
+        }
+        int pairs = toInt(args[0]);
+        for(int i = 0; i < pairs && 2 + i * 2 < args.length; i++) {
+            if(toInt(args[1 + i * 2]) == IPHONEACCEV_BATTERY) {
+                int value = toInt(args[2 + i * 2]);
+                return value >= 0 && value <= 9 ? (value + 1) * 10 : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Model id (as in byte 3 of the beacon) in a +XAPL vendor specific headset event, or -1 if there's none
+     */
+    public static int parseAccessoryInfo(String cmd, Object[] args) {
+        if(!"+XAPL".equals(cmd) || args == null || args.length < 1 || args[0] == null) {
+            return -1;
+        }
+        String[] ids = args[0].toString().split("-");
+        if(ids.length < 2) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(ids[1].trim(), 16) & 0xFF;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int toInt(Object o) {
+        if(o instanceof Integer) {
+            return (Integer) o;
+        }
+        try {
+            return o == null ? -1 : Integer.parseInt(o.toString().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A level 0-100 was reported, returns the status to show
+     */
+    public synchronized PodsStatus onLevel(int level, long now) {
+        this.level = Math.max(0, Math.min(100, level));
+        return getStatus(now);
+    }
+
+    public synchronized void onModel(int model) {
+        this.model = model;
+    }
+
+    /**
+     * A beacon was decoded
+     */
+    public synchronized void onBeacon(PodsStatus status) {
+        lastBeacon = status;
+    }
+
+    /**
+     * The AirPods disconnected, or bluetooth was turned off
+     */
+    public synchronized void onDisconnected() {
+        level = -1;
+        model = -1;
+    }
+
+    public synchronized boolean hasLevel() {
+        return level >= 0;
+    }
+
+    /**
+     * Current status: the last beacon, with the level of its lowest pod lowered to the reported level if that's lower,
+     * since the AirPods report the level of their lowest pod. Null if there's no level.
+     */
+    public synchronized PodsStatus getStatus(long now) {
+        if(level < 0) {
+            return null;
+        }
+        int reported = Math.min(PodsStatus.MAX_CONNECTED_STATUS, level / 10);
+        if(lastBeacon == null) {
+            return new PodsStatus(PodsStatus.pack(reported, reported, PodsStatus.DISCONNECTED_STATUS, 0, model >= 0 ? model : 0), now);
+        }
+        int left = lastBeacon.getLeftLevel();
+        int right = lastBeacon.getRightLevel();
+        //a pod that wasn't connected in the beacon (DISCONNECTED_STATUS) stays that way
+        if(left <= right && left <= PodsStatus.MAX_CONNECTED_STATUS) {
+            left = Math.min(left, reported);
+        } else if(right < left && right <= PodsStatus.MAX_CONNECTED_STATUS) {
+            right = Math.min(right, reported);
+        }
+        int charge = (lastBeacon.isLeftCharging() ? 0b00000001 : 0) |
+                (lastBeacon.isRightCharging() ? 0b00000010 : 0) |
+                (lastBeacon.isCaseCharging() ? 0b00000100 : 0);
+        return new PodsStatus(PodsStatus.pack(left, right, lastBeacon.getCaseLevel(), charge, lastBeacon.getModelId()), now);
+    }
+
+    /**
+     * True if we need beacons: we have no level, or the case status is missing or too old
+     */
+    public synchronized boolean isScanNeeded(long now) {
+        return getRefreshDelay(now) == 0;
+    }
+
+    /**
+     * Milliseconds until isScanNeeded becomes true, 0 if it is already true
+     */
+    public synchronized long getRefreshDelay(long now) {
+        if(level < 0 || lastBeacon == null) {
+            return 0;
+        }
+        long age = now - lastBeacon.getTimestamp();
+        return Math.max(0, (lastBeacon.isCaseCharging() ? chargingRefreshMs : refreshMs) - age);
+    }
+}
@@ -2,10 +2,66 @@ package com.dosse.airpods;
 
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * debug and error go to logcat, only in debug builds.
+ *
+ * Events are the structured alternative to debug(String), for things that happen often (every beacon, every notification):
+ * an id and up to 3 longs, written into a preallocated ring of EVENT_CAPACITY records without allocating anything.
+ * When events are disabled, event() is a single branch on a volatile boolean; callers whose arguments cost something to compute
+ * should check isEventsEnabled first.
+ * They are enabled by default in debug builds, and can be enabled, disabled, written to files/log.bin and read with
+ * adb shell dumpsys activity service com.dosse.airpods/.PodsService [log-on|log-off|log-flush]
+ * Events are only formatted as text when they're read. To also see them in logcat as they happen (debug builds only),
+ * run adb shell setprop log.tag.AirPods VERBOSE before the process starts.
+ *
+ * Any thread can write events: a record is claimed by incrementing next, and its sequence number is set to 0 while it's
+ * being written, so that a reader can tell if it read a record that was being overwritten.
+ * flush appends the records that weren't written yet to the file on a background thread, as RECORD_LONGS longs each
+ * (time in ms, id, a, b, c). When the file is bigger than MAX_FILE_SIZE it is renamed to log.bin.1, replacing the old one.
+ */
 public class Logger {
     //Log is only displayed if this is a debug build, not release
     private static final boolean ENABLE_LOGGING = BuildConfig.DEBUG;
     public static final String TAG = "AirPods";
+    private static final boolean LOGCAT_EVENTS = ENABLE_LOGGING && Log.isLoggable(TAG, Log.VERBOSE);
+
+    public static final int EVENT_BEACON = 0; //address, rssi, packed status
+    public static final int EVENT_NOTIFY = 1; //packed status, fresh (0/1), location enabled (0/1)
+    public static final int EVENT_SCAN_MODE = 2; //mode
+    public static final int EVENT_SCAN_TIME = 3; //ms in low power, balanced, low latency
+    public static final int EVENT_HEADSET_BATTERY = 4; //level 0-100
+    public static final int EVENT_STARTUP = 5; //phase, ms since boot
+    public static final int EVENT_ERROR = 6; //hash of the exception class
+    private static final String[] EVENT_NAMES = {
+            "beacon", "notify", "scan mode", "scan time", "headset battery", "startup", "error"
+    };
+
+    public static final String FILE_NAME = "log.bin";
+    public static final int EVENT_CAPACITY = 2048; //must be a power of 2
+    public static final long MAX_FILE_SIZE = 1 << 20;
+    private static final int RECORD_LONGS = 5;
+
+    private static volatile boolean eventsEnabled = ENABLE_LOGGING;
+
+    private static final AtomicLong next = new AtomicLong();
+    private static final AtomicLongArray sequences = new AtomicLongArray(EVENT_CAPACITY);
+    private static final AtomicLongArray records = new AtomicLongArray(EVENT_CAPACITY * RECORD_LONGS);
+    private static final AtomicBoolean flushing = new AtomicBoolean();
+    private static long flushed = 0; //only used by the flush thread
+
+    public static boolean isLoggingEnabled() {
+        return ENABLE_LOGGING;
+    }
 
     public static void debug(String msg) {
         if(ENABLE_LOGGING) {
@@ -14,8 +70,125 @@ public class Logger {
     }
 
     public static void error(Throwable t) {
+        event(EVENT_ERROR, t.getClass().getName().hashCode());
         if(ENABLE_LOGGING) {
             Log.e(TAG, "ERROR", t);
         }
     }
+
+    public static boolean isEventsEnabled() {
+        return eventsEnabled;
+    }
+
+    public static void setEventsEnabled(boolean enable) {
+        eventsEnabled = enable;
+    }
+
+    public static void event(int id, long a) {
+        if(eventsEnabled) {
+            write(id, a, 0, 0);
+        }
+    }
+
+    public static void event(int id, long a, long b) {
+        if(eventsEnabled) {
+            write(id, a, b, 0);
+        }
+    }
+
+    public static void event(int id, long a, long b, long c) {
+        if(eventsEnabled) {
+            write(id, a, b, c);
+        }
+    }
+
+    private static void write(int id, long a, long b, long c) {
+        long n = next.getAndIncrement();
+        int slot = (int) n & (EVENT_CAPACITY - 1);
+        int base = slot * RECORD_LONGS;
+        sequences.set(slot, 0);
+        records.lazySet(base, System.currentTimeMillis());
+        records.lazySet(base + 1, id);
+        records.lazySet(base + 2, a);
+        records.lazySet(base + 3, b);
+        records.lazySet(base + 4, c);
+        sequences.set(slot, n + 1);
+        if(LOGCAT_EVENTS) {
+            Log.v(TAG, EVENT_NAMES[id] + " " + a + " " + b + " " + c);
+        }
+    }
+
+    /**
+     * Copies record n in dst, returns false if it was overwritten or is being written
+     */
+    private static boolean read(long n, long[] dst) {
+        int slot = (int) n & (EVENT_CAPACITY - 1);
+        if(sequences.get(slot) != n + 1) {
+            return false;
+        }
+        for(int i = 0; i < RECORD_LONGS; i++) {
+            dst[i] = records.get(slot * RECORD_LONGS + i);
+        }
+        return sequences.get(slot) == n + 1;
+    }
+
+    /**
+     * Appends the new events to file on a background thread. Does nothing if a flush is already running.
+     */
+    public static void flush(final File file) {
+        if(!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        new Thread("Logger flush") {
+            @Override
+            public void run() {
+                try {
+                    writeFile(file);
+                } catch (Throwable t) {
+                    if(ENABLE_LOGGING) {
+                        Log.e(TAG, "ERROR", t);
+                    }
+                } finally {
+                    flushing.set(false);
+                }
+            }
+        }.start();
+    }
+
+    private static void writeFile(File file) throws IOException {
+        if(file.length() > MAX_FILE_SIZE) {
+            File old = new File(file.getPath() + ".1");
+            if(!file.renameTo(old)) {
+                throw new IOException("Can't rename " + file);
+            }
+        }
+        long end = next.get();
+        long[] record = new long[RECORD_LONGS];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            for(long n = Math.max(flushed, end - EVENT_CAPACITY); n < end; n++) {
+                if(read(n, record)) {
+                    for(long l : record) {
+                        out.writeLong(l);
+                    }
+                }
+            }
+        }
+        flushed = end;
+    }
+
+    /**
+     * Prints the last count events
+     */
+    public static void dump(PrintWriter writer, int count) {
+        writer.println("Events " + (eventsEnabled ? "enabled" : "disabled") + ":");
+        long end = next.get();
+        long[] record = new long[RECORD_LONGS];
+        for(long n = Math.max(0, Math.max(end - EVENT_CAPACITY, end - count)); n < end; n++) {
+            if(read(n, record)) {
+                int id = (int) record[1];
+                writer.println("  " + record[0] + " " + (id >= 0 && id < EVENT_NAMES.length ? EVENT_NAMES[id] : id) +
+                        " " + record[2] + " " + record[3] + " " + record[4]);
+            }
+        }
+    }
 }
@@ -0,0 +1,117 @@
+package com.dosse.airpods;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the scan pipeline.
+ *
+ * Everything is kept in AtomicLongArrays, so updating them is lock free and allocates nothing.
+ * When metrics are disabled, every call is a single branch on a volatile boolean.
+ * They are enabled by default in debug builds, and can be read, enabled, disabled and reset with
+ * adb shell dumpsys activity service com.dosse.airpods/.PodsService [on|off|reset]
+ */
+public class Metrics {
+
+    //counters
+    public static final int BEACONS_RECEIVED = 0;
+    public static final int BEACONS_NOT_AIRPODS = 1;
+    public static final int BEACONS_TOO_WEAK = 2;
+    public static final int BEACONS_SUPERSEDED = 3;
+    public static final int STATUS_CHANGED = 4;
+    public static final int STATUS_REFRESHED = 5;
+    public static final int NOTIFY = 6;
+    public static final int NOTIFY_CANCEL = 7;
+    public static final int BEACONS_BROAD_FILTER = 8;
+    public static final int BEACONS_LEARNED_FILTER = 9;
+    public static final int FILTERS_LEARNED = 10;
+    public static final int BEACON_SWITCHES = 11;
+    public static final int HEADSET_BATTERY_REPORTS = 12;
+    public static final int SCAN_SUSPENSIONS = 13;
+    public static final int BEACONS_DROPPED = 14;
+    public static final int SCAN_OPPORTUNISTIC = 15;
+    public static final int SCAN_OPPORTUNISTIC_MS = 16;
+    public static final int STATUS_OPPORTUNISTIC = 17;
+    public static final int SCAN_STARTS_DELAYED = 18;
+    private static final String[] COUNTER_NAMES = {
+            "beacons received", "beacons not airpods", "beacons too weak", "beacons superseded",
+            "status changed", "status refreshed", "notify", "notify cancel",
+            "beacons with broad filter", "beacons with learned filters", "filters learned",
+            "best beacon switches", "headset battery reports", "scan suspended for headset battery",
+            "beacons dropped (queue full)", "switched to opportunistic scan", "ms in opportunistic scan",
+            "status changed or refreshed by opportunistic scan", "scan starts delayed (too frequent)"
+    };
+
+    //histograms
+    public static final int DECODE_TIME = 0;
+    public static final int NOTIFICATION_LATENCY = 1;
+    private static final String[] HISTOGRAM_NAMES = {"decode time", "beacon to notification latency"};
+
+    //bucket i counts durations shorter than 2^i microseconds (and not shorter than 2^(i-1)), the last one counts everything longer
+    private static final int BUCKETS = 24;
+
+    private static volatile boolean enabled = BuildConfig.DEBUG;
+
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+    private static final AtomicLongArray histograms = new AtomicLongArray(HISTOGRAM_NAMES.length * BUCKETS);
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static void increment(int counter) {
+        if(enabled) {
+            counters.incrementAndGet(counter);
+        }
+    }
+
+    public static void add(int counter, long value) {
+        if(enabled) {
+            counters.addAndGet(counter, value);
+        }
+    }
+
+    /**
+     * Adds a duration, measured with System.nanoTime or SystemClock.elapsedRealtimeNanos, to a histogram
+     */
+    public static void recordNanos(int histogram, long nanos) {
+        if(enabled) {
+            long micros = nanos / 1000;
+            int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            histograms.incrementAndGet(histogram * BUCKETS + bucket);
+        }
+    }
+
+    public static long get(int counter) {
+        return counters.get(counter);
+    }
+
+    public static void reset() {
+        for(int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for(int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, 0);
+        }
+    }
+
+    public static void dump(PrintWriter writer) {
+        writer.println("Metrics " + (enabled ? "enabled" : "disabled"));
+        for(int i = 0; i < COUNTER_NAMES.length; i++) {
+            writer.println("  " + COUNTER_NAMES[i] + ": " + counters.get(i));
+        }
+        for(int h = 0; h < HISTOGRAM_NAMES.length; h++) {
+            writer.println("  " + HISTOGRAM_NAMES[h] + ":");
+            for(int b = 0; b < BUCKETS; b++) {
+                long count = histograms.get(h * BUCKETS + b);
+                if(count != 0) {
+                    writer.println("    " + (b == BUCKETS - 1 ? ">=" + (1L << (b - 1)) : "<" + (1L << b)) + "us: " + count);
+                }
+            }
+        }
+    }
+}
@@ -6,22 +6,60 @@ import android.view.View;
 import android.widget.RemoteViews;
 import androidx.core.app.NotificationCompat;
 
+import java.util.Arrays;
+
+/**
+ * Builds the notification from a PodsStatus.
+ *
+ * RemoteViews keeps a list of all the actions that were applied to it, and the whole list is sent to the system every time the
+ * notification is posted. To keep it small, we remember what was last rendered and only add the actions that change something.
+ * When the list gets longer than MAX_ACTIONS, the RemoteViews are created again from scratch with just the current state.
+ *
+ * The big notification shows the time remaining (to empty, or to full while charging) under each percentage, as estimated by
+ * the BatteryEstimator it's given. PodsService feeds the estimator, a builder only reads it.
+ * The remaining time changes even if the status doesn't, see isRemainingTimeOutdated.
+ */
 public class NotificationBuilder {
     public static final String TAG="AirPods";
     public static final long TIMEOUT_CONNECTED = 30000;
     public static final int NOTIFICATION_ID = 1;
+    public static final int DEVICE_NOTIFICATION_ID = 100; //DEVICE_NOTIFICATION_ID + slot in the DeviceTable
+    public static final long TIMEOUT_DEVICE = 60000;
+    public static final int MAX_ACTIONS = 64;
+
+    private static final int[] IMAGE_VIEWS = {R.id.leftPodImg, R.id.rightPodImg, R.id.podCaseImg};
+    private static final int[] TEXT_VIEWS = {R.id.leftPodText, R.id.rightPodText, R.id.podCaseText};
+    private static final int[] UPDATING_VIEWS = {R.id.leftPodUpdating, R.id.rightPodUpdating, R.id.podCaseUpdating};
+    private static final int[] CONTAINER_VIEWS = {R.id.leftPod, R.id.rightPod, R.id.podCase};
 
-    private final RemoteViews notificationBig;
-    private final RemoteViews notificationSmall;
+    private final Context context;
+    private final String packageName;
+    private RemoteViews notificationBig;
+    private RemoteViews notificationSmall;
     private final RemoteViews locationDisabledBig;
     private final RemoteViews locationDisabledSmall;
     private final NotificationCompat.Builder mBuilder;
+    private final BatteryEstimator estimator;
+
+    //last rendered state, and number of actions applied to notificationBig and notificationSmall
+    private int actions;
+    private final int[] images = new int[IMAGE_VIEWS.length];
+    private final String[] texts = new String[TEXT_VIEWS.length];
+    private final String[] bigTexts = new String[TEXT_VIEWS.length];
+    private final long[] minutes = new long[TEXT_VIEWS.length]; //remaining time in bigTexts, -1 if not shown
+    private final String[] descriptions = new String[CONTAINER_VIEWS.length];
+    private int textVisibility;
+    private PodsModel layoutModel;
+    private Boolean statusLayout = null;
 
-    public NotificationBuilder(Context context) {
-        notificationBig = new RemoteViews(context.getPackageName(), R.layout.status_big);
-        notificationSmall = new RemoteViews(context.getPackageName(), R.layout.status_small);
-        locationDisabledBig = new RemoteViews(context.getPackageName(), R.layout.location_disabled_big);
-        locationDisabledSmall = new RemoteViews(context.getPackageName(), R.layout.location_disabled_small);
+    public NotificationBuilder(Context context, BatteryEstimator estimator) {
+        this.context = context;
+        this.estimator = estimator;
+        packageName = context.getPackageName();
+        BatteryLabels.init(context);
+        locationDisabledBig = new RemoteViews(packageName, R.layout.location_disabled_big);
+        locationDisabledSmall = new RemoteViews(packageName, R.layout.location_disabled_small);
+        resetStatusViews();
         mBuilder = new NotificationCompat.Builder(context, TAG);
         mBuilder.setShowWhen(false);
         mBuilder.setOngoing(true);
@@ -29,65 +67,173 @@ public class NotificationBuilder {
     }
 
     public Notification build(PodsStatus status, boolean location) {
-        if(location || (status.isAllDisconnected() && isFreshStatus(status))) {
-            mBuilder.setCustomContentView(notificationSmall);
-            mBuilder.setCustomBigContentView(notificationBig);
-        }else{
-            mBuilder.setCustomContentView(locationDisabledSmall);
-            mBuilder.setCustomBigContentView(locationDisabledBig);
+        if(actions > MAX_ACTIONS) {
+            resetStatusViews();
+        }
+        boolean showStatus = location || (status.isAllDisconnected() && isFreshStatus(status));
+        if(statusLayout == null || statusLayout != showStatus) {
+            statusLayout = showStatus;
+            if(showStatus) {
+                mBuilder.setCustomContentView(notificationSmall);
+                mBuilder.setCustomBigContentView(notificationBig);
+            }else{
+                mBuilder.setCustomContentView(locationDisabledSmall);
+                mBuilder.setCustomBigContentView(locationDisabledBig);
+            }
         }
-        if(status.isAirpods()){
-            notificationBig.setImageViewResource(R.id.leftPodImg, status.isLeftConnected() ? R.drawable.pod : R.drawable.pod_disconnected);
-            notificationBig.setImageViewResource(R.id.rightPodImg, status.isRightConnected() ? R.drawable.pod : R.drawable.pod_disconnected);
-            notificationBig.setImageViewResource(R.id.podCaseImg, status.isCaseConnected() ? R.drawable.pod_case : R.drawable.pod_case_disconnected);
-            notificationSmall.setImageViewResource(R.id.leftPodImg, status.isLeftConnected() ? R.drawable.pod : R.drawable.pod_disconnected);
-            notificationSmall.setImageViewResource(R.id.rightPodImg, status.isRightConnected() ? R.drawable.pod : R.drawable.pod_disconnected);
-            notificationSmall.setImageViewResource(R.id.podCaseImg, status.isCaseConnected() ? R.drawable.pod_case : R.drawable.pod_case_disconnected);
-        }else if(status.isAirpodsPro()){
-            notificationBig.setImageViewResource(R.id.leftPodImg, status.isLeftConnected() ? R.drawable.podpro : R.drawable.podpro_disconnected);
-            notificationBig.setImageViewResource(R.id.rightPodImg, status.isRightConnected() ? R.drawable.podpro : R.drawable.podpro_disconnected);
-            notificationBig.setImageViewResource(R.id.podCaseImg, status.isCaseConnected() ? R.drawable.podpro_case : R.drawable.podpro_case_disconnected);
-            notificationSmall.setImageViewResource(R.id.leftPodImg, status.isLeftConnected() ? R.drawable.podpro : R.drawable.podpro_disconnected);
-            notificationSmall.setImageViewResource(R.id.rightPodImg, status.isRightConnected() ? R.drawable.podpro : R.drawable.podpro_disconnected);
-            notificationSmall.setImageViewResource(R.id.podCaseImg, status.isCaseConnected() ? R.drawable.podpro_case : R.drawable.podpro_case_disconnected);
+        PodsModel model = status.getModel();
+        setModelLayout(model);
+        setImage(0, model.getPodImage(status.isLeftConnected()));
+        if(!model.isSingleBattery()) {
+            setImage(1, model.getPodImage(status.isRightConnected()));
+        }
+        if(model.hasCase()) {
+            setImage(2, model.getCaseImage(status.isCaseConnected()));
         }
         if(isFreshStatus(status)) {
-            notificationBig.setViewVisibility(R.id.leftPodText, View.VISIBLE);
-            notificationBig.setViewVisibility(R.id.rightPodText, View.VISIBLE);
-            notificationBig.setViewVisibility(R.id.podCaseText, View.VISIBLE);
-            notificationBig.setViewVisibility(R.id.leftPodUpdating, View.INVISIBLE);
-            notificationBig.setViewVisibility(R.id.rightPodUpdating, View.INVISIBLE);
-            notificationBig.setViewVisibility(R.id.podCaseUpdating, View.INVISIBLE);
-            notificationSmall.setViewVisibility(R.id.leftPodText, View.VISIBLE);
-            notificationSmall.setViewVisibility(R.id.rightPodText, View.VISIBLE);
-            notificationSmall.setViewVisibility(R.id.podCaseText, View.VISIBLE);
-            notificationSmall.setViewVisibility(R.id.leftPodUpdating, View.INVISIBLE);
-            notificationSmall.setViewVisibility(R.id.rightPodUpdating, View.INVISIBLE);
-            notificationSmall.setViewVisibility(R.id.podCaseUpdating, View.INVISIBLE);
-            notificationBig.setTextViewText(R.id.leftPodText, status.getLeftStatus());
-            notificationBig.setTextViewText(R.id.rightPodText, status.getRightStatus());
-            notificationBig.setTextViewText(R.id.podCaseText, status.getCaseStatus());
-            notificationSmall.setTextViewText(R.id.leftPodText, status.getLeftStatus());
-            notificationSmall.setTextViewText(R.id.rightPodText, status.getRightStatus());
-            notificationSmall.setTextViewText(R.id.podCaseText, status.getCaseStatus());
+            long now = System.currentTimeMillis();
+            setTextVisibility(View.VISIBLE);
+            setText(0, status.getLeftStatus(), estimator.getMinutes(BatteryEstimator.LEFT, now));
+            setText(1, status.getRightStatus(), estimator.getMinutes(BatteryEstimator.RIGHT, now));
+            setText(2, status.getCaseStatus(), estimator.getMinutes(BatteryEstimator.CASE, now));
+            setDescription(BatteryLabels.LEFT, status.getLeftLevel(), status.isLeftCharging());
+            setDescription(BatteryLabels.RIGHT, status.getRightLevel(), status.isRightCharging());
+            setDescription(BatteryLabels.CASE, status.getCaseLevel(), status.isCaseCharging());
         }else{
-            notificationBig.setViewVisibility(R.id.leftPodText, View.INVISIBLE);
-            notificationBig.setViewVisibility(R.id.rightPodText, View.INVISIBLE);
-            notificationBig.setViewVisibility(R.id.podCaseText, View.INVISIBLE);
-            notificationBig.setViewVisibility(R.id.leftPodUpdating, View.VISIBLE);
-            notificationBig.setViewVisibility(R.id.rightPodUpdating, View.VISIBLE);
-            notificationBig.setViewVisibility(R.id.podCaseUpdating, View.VISIBLE);
-            notificationSmall.setViewVisibility(R.id.leftPodText, View.INVISIBLE);
-            notificationSmall.setViewVisibility(R.id.rightPodText, View.INVISIBLE);
-            notificationSmall.setViewVisibility(R.id.podCaseText, View.INVISIBLE);
-            notificationSmall.setViewVisibility(R.id.leftPodUpdating, View.VISIBLE);
-            notificationSmall.setViewVisibility(R.id.rightPodUpdating, View.VISIBLE);
-            notificationSmall.setViewVisibility(R.id.podCaseUpdating, View.VISIBLE);
+            setTextVisibility(View.INVISIBLE);
+            setDescription(BatteryLabels.LEFT, PodsStatus.DISCONNECTED_STATUS, false);
+            setDescription(BatteryLabels.RIGHT, PodsStatus.DISCONNECTED_STATUS, false);
+            setDescription(BatteryLabels.CASE, PodsStatus.DISCONNECTED_STATUS, false);
         }
         return mBuilder.build();
     }
 
-    private boolean isFreshStatus(PodsStatus status) {
+    /**
+     * True if the remaining time shown by the last build has changed since then, and the notification should be built again
+     * even if the status is the same
+     */
+    public boolean isRemainingTimeOutdated() {
+        if(textVisibility != View.VISIBLE) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < minutes.length; i++) {
+            if(minutes[i] != estimator.getMinutes(i, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Number of actions currently applied to the status RemoteViews, each of them is sent to the system with the notification
+     */
+    public int getActionCount() {
+        return actions;
+    }
+
+    private void resetStatusViews() {
+        notificationBig = new RemoteViews(packageName, R.layout.status_big);
+        notificationSmall = new RemoteViews(packageName, R.layout.status_small);
+        actions = 0;
+        Arrays.fill(images, 0);
+        Arrays.fill(texts, null);
+        Arrays.fill(bigTexts, null);
+        Arrays.fill(descriptions, null);
+        textVisibility = -1;
+        layoutModel = null;
+        statusLayout = null;
+    }
+
+    /**
+     * Hides the right pod for models with a single battery, and the case for models without a case
+     */
+    private void setModelLayout(PodsModel model) {
+        if(layoutModel != null && layoutModel.isSingleBattery() == model.isSingleBattery() && layoutModel.hasCase() == model.hasCase()) {
+            layoutModel = model;
+            return;
+        }
+        layoutModel = model;
+        int rightVisibility = model.isSingleBattery() ? View.GONE : View.VISIBLE;
+        int caseVisibility = model.hasCase() ? View.VISIBLE : View.GONE;
+        notificationBig.setViewVisibility(R.id.rightPod, rightVisibility);
+        notificationSmall.setViewVisibility(R.id.rightPod, rightVisibility);
+        notificationBig.setViewVisibility(R.id.podCase, caseVisibility);
+        notificationSmall.setViewVisibility(R.id.podCase, caseVisibility);
+        actions += 4;
+    }
+
+    private void setImage(int index, int resource) {
+        if(images[index] != resource) {
+            images[index] = resource;
+            notificationBig.setImageViewResource(IMAGE_VIEWS[index], resource);
+            notificationSmall.setImageViewResource(IMAGE_VIEWS[index], resource);
+            actions += 2;
+        }
+    }
+
+    /**
+     * The small notification only shows the percentage, the big one also shows the time remaining if it's known (minutes >= 0).
+     * The big text is only built again when the percentage or the remaining time changes.
+     */
+    private void setText(int index, String text, long minutes) {
+        boolean textChanged = !text.equals(texts[index]);
+        if(textChanged) {
+            texts[index] = text;
+            notificationSmall.setTextViewText(TEXT_VIEWS[index], text);
+            actions++;
+        }
+        if(!textChanged && minutes == this.minutes[index] && bigTexts[index] != null) {
+            return;
+        }
+        this.minutes[index] = minutes;
+        String bigText = minutes < 0 || text.isEmpty() ? text : text + "\n" + formatMinutes(minutes);
+        if(!bigText.equals(bigTexts[index])) {
+            bigTexts[index] = bigText;
+            notificationBig.setTextViewText(TEXT_VIEWS[index], bigText);
+            actions++;
+        }
+    }
+
+    /**
+     * Content description of a pod or the case, read by accessibility services. The labels are shared instances,
+     * so comparing references is enough.
+     */
+    private void setDescription(int index, int level, boolean charging) {
+        String description = BatteryLabels.getDescription(index, level, charging);
+        if(description != descriptions[index]) {
+            descriptions[index] = description;
+            notificationBig.setContentDescription(CONTAINER_VIEWS[index], description);
+            notificationSmall.setContentDescription(CONTAINER_VIEWS[index], description);
+            actions += 2;
+        }
+    }
+
+    private String formatMinutes(long minutes) {
+        if(minutes < 60) {
+            return context.getString(R.string.remainingMinutes, minutes);
+        }
+        return context.getString(R.string.remainingHours, minutes / 60, minutes % 60);
+    }
+
+    /**
+     * VISIBLE shows the battery texts and hides the progress bars, INVISIBLE does the opposite
+     */
+    private void setTextVisibility(int visibility) {
+        if(textVisibility != visibility) {
+            textVisibility = visibility;
+            int updatingVisibility = visibility == View.VISIBLE ? View.INVISIBLE : View.VISIBLE;
+            for(int i = 0; i < TEXT_VIEWS.length; i++) {
+                notificationBig.setViewVisibility(TEXT_VIEWS[i], visibility);
+                notificationBig.setViewVisibility(UPDATING_VIEWS[i], updatingVisibility);
+                notificationSmall.setViewVisibility(TEXT_VIEWS[i], visibility);
+                notificationSmall.setViewVisibility(UPDATING_VIEWS[i], updatingVisibility);
+                actions += 4;
+            }
+        }
+    }
+
+    public static boolean isFreshStatus(PodsStatus status) {
         return System.currentTimeMillis() - status.getTimestamp() < TIMEOUT_CONNECTED;
     }
 }
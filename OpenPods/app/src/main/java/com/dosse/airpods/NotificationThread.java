@@ -4,38 +4,69 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.content.Context;
-import android.location.LocationManager;
 import android.os.Build;
-import android.provider.Settings;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.dosse.airpods.Logger.debug;
-import static com.dosse.airpods.Logger.error;
+import static com.dosse.airpods.Logger.event;
+import static com.dosse.airpods.NotificationBuilder.DEVICE_NOTIFICATION_ID;
 import static com.dosse.airpods.NotificationBuilder.NOTIFICATION_ID;
 import static com.dosse.airpods.NotificationBuilder.TAG;
+import static com.dosse.airpods.NotificationBuilder.TIMEOUT_CONNECTED;
+import static com.dosse.airpods.NotificationBuilder.TIMEOUT_DEVICE;
+import static com.dosse.airpods.NotificationBuilder.isFreshStatus;
 
 /**
  * The following class is a thread that manages the notification while your AirPods are connected.
  *
- * It simply reads the status variables every 1 seconds and creates, destroys, or updates the notification accordingly.
- * The notification is shown when BT is on and AirPods are connected. The status is updated every 1 second.
- * Battery% is hidden if we didn't receive a beacon for 30 seconds (screen off for a while)
+ * It sleeps until the service calls update() (new status, AirPods connected/disconnected, location turned on/off),
+ * then reads the latest ServiceState and creates, destroys, or updates the notification accordingly.
+ * Several updates arriving together are coalesced into one, and the notification is only posted again if something visible changed.
+ * The notification is shown when BT is on and AirPods are connected.
+ * Battery% is hidden if we didn't receive a beacon for 30 seconds (screen off for a while): a single delayed message takes care of that.
+ * While the status is fresh, the same message also wakes the thread at least every 30 seconds, so the remaining time is kept current
+ * even if the status doesn't change.
  *
- * This thread is the reason why we need permission to disable doze. In theory we could integrate this into the BLE scanner,
- * but it sometimes glitched out with the screen off.
+ * If the service tracks several pairs of AirPods (getDevices() is not null), each of them gets its own notification,
+ * which is removed after TIMEOUT_DEVICE without beacons.
  *
  */
 
-public abstract class NotificationThread extends Thread {
-    private static final long SLEEP_TIMEOUT = 1000;
+public abstract class NotificationThread extends HandlerThread implements Handler.Callback {
+    private static final int MSG_UPDATE = 1;
+    private static final int MSG_STALE = 2;
 
+    private final Context context;
     private final NotificationBuilder builder;
     private final NotificationManager mNotifyManager;
+    private Handler handler;
+    private final AtomicLong beaconReceivedAt = new AtomicLong(); //for Metrics.NOTIFICATION_LATENCY, 0 if there's no beacon to show
+
+    //what is currently displayed, only accessed from this thread
+    private boolean notificationShowing = false;
+    private PodsStatus shownStatus = null;
+    private boolean shownFresh = false;
+    private boolean shownLocation = false;
 
-    public abstract boolean isConnected();
-    public abstract boolean isLocationEnabled();
-    public abstract PodsStatus getStatus();
+    //same as above, for each slot of the DeviceTable
+    private NotificationBuilder[] deviceBuilders = null;
+    private PodsStatus[] deviceShownStatus = null;
+    private boolean[] deviceShownFresh = null;
 
-    public NotificationThread(Context context){
+    public abstract ServiceState getServiceState();
+    public abstract DeviceTable getDevices();
+
+    /**
+     * @param estimator time remaining for the status of getServiceState, the devices have their own in the DeviceTable
+     */
+    public NotificationThread(Context context, BatteryEstimator estimator){
+        super("NotificationThread");
+        this.context = context;
         mNotifyManager=(NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) { //on oreo and newer, create a notification channel
             NotificationChannel channel = new NotificationChannel(TAG, TAG, NotificationManager.IMPORTANCE_LOW);
@@ -45,35 +76,157 @@ public abstract class NotificationThread extends Thread {
             channel.setLockscreenVisibility(Notification.VISIBILITY_PUBLIC);
             mNotifyManager.createNotificationChannel(channel);
         }
-        builder = new NotificationBuilder(context);
+        builder = new NotificationBuilder(context, estimator);
+        //left behind by a previous instance, if any
+        mNotifyManager.cancel(NOTIFICATION_ID);
+        for(int slot = 0; slot < DeviceTable.DEFAULT_CAPACITY; slot++) {
+            mNotifyManager.cancel(DEVICE_NOTIFICATION_ID + slot);
+        }
     }
 
-    public void run(){
-        boolean notificationShowing=false;
-        while (!Thread.interrupted()){
-            PodsStatus status = getStatus();
-            if(isConnected() && !(status.isAllDisconnected())
-                // && System.currentTimeMillis() - lastSeenConnected < TIMEOUT_CONNECTED
-            ){
-                if(!notificationShowing){
-                    debug("Creating notification");
-                    notificationShowing = true;
-                }
-                debug( status.getStatusString());
-                mNotifyManager.notify(NOTIFICATION_ID, builder.build(status, isLocationEnabled()));
-            }else{
-                if(notificationShowing){
-                    debug("Removing notification");
-                    notificationShowing = false;
-                    continue;
+    @Override
+    public synchronized void start() {
+        super.start();
+        handler = new Handler(getLooper(), this);
+        update();
+    }
+
+    /**
+     * Something changed, schedule a check of the notification. Can be called from any thread.
+     */
+    public void update() {
+        update(0);
+    }
+
+    /**
+     * Same as above, for a change caused by a beacon that the scan callback received at beaconReceivedNs
+     * (SystemClock.elapsedRealtimeNanos, 0 if unknown). The time from the oldest beacon that wasn't shown yet to the notification
+     * is recorded in Metrics.NOTIFICATION_LATENCY.
+     */
+    public void update(long beaconReceivedNs) {
+        if(beaconReceivedNs != 0) {
+            beaconReceivedAt.compareAndSet(0, beaconReceivedNs);
+        }
+        Handler h = handler;
+        if(h != null && !h.hasMessages(MSG_UPDATE)) {
+            h.sendEmptyMessage(MSG_UPDATE);
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if(msg.what != MSG_UPDATE && msg.what != MSG_STALE) {
+            return false;
+        }
+        long beaconReceived = msg.what == MSG_UPDATE ? beaconReceivedAt.getAndSet(0) : 0;
+        DeviceTable devices = getDevices();
+        if(devices != null) {
+            //the service may have switched to one notification per device after this one was posted (see PodsService.onCreate)
+            cancelStatusNotification();
+            updateDevices(devices, beaconReceived);
+            return true;
+        }
+        cancelDeviceNotifications();
+        ServiceState state = getServiceState();
+        PodsStatus status = state.getStatus();
+        if(state.isConnected() && !(status.isAllDisconnected())){
+            boolean fresh = isFreshStatus(status);
+            boolean location = state.isLocationEnabled();
+            if(!notificationShowing){
+                debug("Creating notification");
+            }
+            if(!notificationShowing || fresh != shownFresh || location != shownLocation || !status.equals(shownStatus)
+                    || (fresh && builder.isRemainingTimeOutdated())) {
+                event(Logger.EVENT_NOTIFY, status.getPacked(), fresh ? 1 : 0, location ? 1 : 0);
+                mNotifyManager.notify(NOTIFICATION_ID, builder.build(status, location));
+                StartupTrace.mark(StartupTrace.FIRST_NOTIFICATION);
+                Metrics.increment(Metrics.NOTIFY);
+                if(beaconReceived != 0) {
+                    Metrics.recordNanos(Metrics.NOTIFICATION_LATENCY, SystemClock.elapsedRealtimeNanos() - beaconReceived);
                 }
-                mNotifyManager.cancel(NOTIFICATION_ID);
+                notificationShowing = true;
+                shownStatus = status;
+                shownFresh = fresh;
+                shownLocation = location;
             }
-            try {
-                Thread.sleep(SLEEP_TIMEOUT);
-            } catch (InterruptedException e) {
-                error(e);
+            handler.removeMessages(MSG_STALE);
+            if(fresh) {
+                //wake up again when this status becomes too old to be shown
+                handler.sendEmptyMessageDelayed(MSG_STALE, status.getTimestamp() + TIMEOUT_CONNECTED - System.currentTimeMillis());
             }
+        }else{
+            cancelStatusNotification();
+            handler.removeMessages(MSG_STALE);
+        }
+        return true;
+    }
+
+    private void cancelStatusNotification() {
+        if(notificationShowing){
+            debug("Removing notification");
+            notificationShowing = false;
+            shownStatus = null;
+            mNotifyManager.cancel(NOTIFICATION_ID);
+            Metrics.increment(Metrics.NOTIFY_CANCEL);
+        }
+    }
+
+    private void cancelDeviceNotifications() {
+        if(deviceShownStatus == null) {
+            return;
+        }
+        for(int slot = 0; slot < deviceShownStatus.length; slot++) {
+            if(deviceShownStatus[slot] != null) {
+                mNotifyManager.cancel(DEVICE_NOTIFICATION_ID + slot);
+                Metrics.increment(Metrics.NOTIFY_CANCEL);
+                deviceShownStatus[slot] = null;
+            }
+        }
+    }
+
+    private void updateDevices(DeviceTable devices, long beaconReceived) {
+        if(deviceBuilders == null) {
+            deviceBuilders = new NotificationBuilder[devices.getCapacity()];
+            deviceShownStatus = new PodsStatus[devices.getCapacity()];
+            deviceShownFresh = new boolean[devices.getCapacity()];
+        }
+        boolean location = getServiceState().isLocationEnabled();
+        boolean locationChanged = location != shownLocation;
+        shownLocation = location;
+        long now = System.currentTimeMillis();
+        long nextWakeUp = Long.MAX_VALUE;
+        boolean notified = false;
+        for(int slot = 0; slot < deviceBuilders.length; slot++) {
+            PodsStatus status = devices.getStatus(slot);
+            long age = status == null ? Long.MAX_VALUE : now - status.getTimestamp();
+            if(status != null && !status.isAllDisconnected() && age < TIMEOUT_DEVICE) {
+                boolean fresh = age < TIMEOUT_CONNECTED;
+                if(deviceShownStatus[slot] == null || fresh != deviceShownFresh[slot] || locationChanged || !status.equals(deviceShownStatus[slot])
+                        || (fresh && deviceBuilders[slot].isRemainingTimeOutdated())) {
+                    if(deviceBuilders[slot] == null) {
+                        deviceBuilders[slot] = new NotificationBuilder(context, devices.getEstimator(slot));
+                    }
+                    mNotifyManager.notify(DEVICE_NOTIFICATION_ID + slot, deviceBuilders[slot].build(status, location));
+                    notified = true;
+                    StartupTrace.mark(StartupTrace.FIRST_NOTIFICATION);
+                    Metrics.increment(Metrics.NOTIFY);
+                    deviceShownStatus[slot] = status;
+                    deviceShownFresh[slot] = fresh;
+                }
+                nextWakeUp = Math.min(nextWakeUp, status.getTimestamp() + (fresh ? TIMEOUT_CONNECTED : TIMEOUT_DEVICE));
+            } else if(deviceShownStatus[slot] != null) {
+                mNotifyManager.cancel(DEVICE_NOTIFICATION_ID + slot);
+                Metrics.increment(Metrics.NOTIFY_CANCEL);
+                deviceShownStatus[slot] = null;
+            }
+        }
+        if(beaconReceived != 0 && notified) {
+            Metrics.recordNanos(Metrics.NOTIFICATION_LATENCY, SystemClock.elapsedRealtimeNanos() - beaconReceived);
+        }
+        handler.removeMessages(MSG_STALE);
+        if(nextWakeUp != Long.MAX_VALUE) {
+            //wake up again when one of the statuses becomes too old to be shown
+            handler.sendEmptyMessageDelayed(MSG_STALE, nextWakeUp - now);
         }
     }
 }
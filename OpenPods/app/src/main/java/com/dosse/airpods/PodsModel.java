@@ -0,0 +1,103 @@
+package com.dosse.airpods;
+
+/**
+ * The models we know, looked up by byte 3 of the beacon (byte 4 is always 0x20 for Apple and Beats devices).
+ *
+ * Each model carries what NotificationBuilder needs to draw it: the pod and case images when connected and disconnected,
+ * and whether it has a case and one or two batteries (over-ear headphones report their only battery where the left pod's
+ * would be). Models we don't have images for use the regular AirPods ones.
+ *
+ * To support a new model, add it here with its id.
+ */
+public enum PodsModel {
+
+    UNKNOWN("unknown", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected),
+    AIRPODS_1("airpods1", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected, 0x02),
+    AIRPODS_2("airpods2", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected, 0x0F),
+    AIRPODS_3("airpods3", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected, 0x13),
+    AIRPODS_4("airpods4", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected, 0x19, 0x1B),
+    AIRPODS_PRO("airpodspro", Flags.HAS_CASE, R.drawable.podpro, R.drawable.podpro_disconnected, R.drawable.podpro_case, R.drawable.podpro_case_disconnected, 0x0E),
+    AIRPODS_PRO_2("airpodspro2", Flags.HAS_CASE, R.drawable.podpro, R.drawable.podpro_disconnected, R.drawable.podpro_case, R.drawable.podpro_case_disconnected, 0x14, 0x24),
+    AIRPODS_MAX("airpodsmax", Flags.SINGLE_BATTERY, R.drawable.pod, R.drawable.pod_disconnected, 0, 0, 0x0A),
+    POWERBEATS_3("powerbeats3", Flags.SINGLE_BATTERY, R.drawable.pod, R.drawable.pod_disconnected, 0, 0, 0x03),
+    POWERBEATS_PRO("powerbeatspro", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected, 0x0B),
+    BEATS_X("beatsx", Flags.SINGLE_BATTERY, R.drawable.pod, R.drawable.pod_disconnected, 0, 0, 0x05),
+    BEATS_FLEX("beatsflex", Flags.SINGLE_BATTERY, R.drawable.pod, R.drawable.pod_disconnected, 0, 0, 0x10),
+    BEATS_SOLO_3("beatssolo3", Flags.SINGLE_BATTERY, R.drawable.pod, R.drawable.pod_disconnected, 0, 0, 0x06),
+    BEATS_SOLO_PRO("beatssolopro", Flags.SINGLE_BATTERY, R.drawable.pod, R.drawable.pod_disconnected, 0, 0, 0x0C),
+    BEATS_STUDIO_3("beatsstudio3", Flags.SINGLE_BATTERY, R.drawable.pod, R.drawable.pod_disconnected, 0, 0, 0x09),
+    BEATS_STUDIO_PRO("beatsstudiopro", Flags.SINGLE_BATTERY, R.drawable.pod, R.drawable.pod_disconnected, 0, 0, 0x17),
+    BEATS_STUDIO_BUDS("beatsstudiobuds", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected, 0x11),
+    BEATS_STUDIO_BUDS_PLUS("beatsstudiobudsplus", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected, 0x16),
+    BEATS_FIT_PRO("beatsfitpro", Flags.HAS_CASE, R.drawable.pod, R.drawable.pod_disconnected, R.drawable.pod_case, R.drawable.pod_case_disconnected, 0x12);
+
+    //in a nested class because the constants above can't refer to static fields of the enum
+    private static final class Flags {
+        static final int HAS_CASE = 1;
+        static final int SINGLE_BATTERY = 2;
+    }
+
+    private static final PodsModel[] BY_ID = new PodsModel[256];
+
+    static {
+        for(int i = 0; i < BY_ID.length; i++) {
+            BY_ID[i] = UNKNOWN;
+        }
+        for(PodsModel model : values()) {
+            for(int id : model.ids) {
+                BY_ID[id] = model;
+            }
+        }
+    }
+
+    private final String name;
+    private final int flags;
+    private final int podImage;
+    private final int podDisconnectedImage;
+    private final int caseImage;
+    private final int caseDisconnectedImage;
+    private final int[] ids;
+
+    PodsModel(String name, int flags, int podImage, int podDisconnectedImage, int caseImage, int caseDisconnectedImage, int... ids) {
+        this.name = name;
+        this.flags = flags;
+        this.podImage = podImage;
+        this.podDisconnectedImage = podDisconnectedImage;
+        this.caseImage = caseImage;
+        this.caseDisconnectedImage = caseDisconnectedImage;
+        this.ids = ids;
+    }
+
+    /**
+     * Model with this id (byte 3 of the beacon), or UNKNOWN
+     */
+    public static PodsModel fromId(int id) {
+        return BY_ID[id & 0xFF];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean hasCase() {
+        return (flags & Flags.HAS_CASE) != 0;
+    }
+
+    /**
+     * Headphones and neckbands have only one battery, reported as the left pod
+     */
+    public boolean isSingleBattery() {
+        return (flags & Flags.SINGLE_BATTERY) != 0;
+    }
+
+    public int getPodImage(boolean connected) {
+        return connected ? podImage : podDisconnectedImage;
+    }
+
+    /**
+     * Image of the case, 0 if there's no case
+     */
+    public int getCaseImage(boolean connected) {
+        return connected ? caseImage : caseDisconnectedImage;
+    }
+}
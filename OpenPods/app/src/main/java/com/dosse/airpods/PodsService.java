@@ -6,20 +6,30 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.location.LocationManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.Settings;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static com.dosse.airpods.BluetoothDeviceInfo.checkUUID;
 import static com.dosse.airpods.Logger.debug;
 import static com.dosse.airpods.Logger.error;
+import static com.dosse.airpods.Logger.event;
 import static com.dosse.airpods.PodsStatusScanCallback.getScanSettings;
-import static com.dosse.airpods.PodsStatusScanCallback.getScanFilters;
 
 /**
  * This is the class that does most of the work. It has 3 functions:
@@ -27,19 +37,51 @@ import static com.dosse.airpods.PodsStatusScanCallback.getScanFilters;
  * - Receive beacons from AirPods and decode them (easier said than done thanks to google's autism)
  * - Display the notification with the status
  *
+ * To start quickly, onCreate only shows the last known state (if a previous instance of the service left one) and starts
+ * a worker thread. Everything else (preferences, receivers, scanner) is set up on the worker thread, where all
+ * the scanner management happens from then on: receivers are delivered there, and the scan callback posts to it.
+ * Beacons are decoded on a second thread, so that the scan callback only has to copy them (see BeaconRing).
+ *
  */
 public class PodsService extends Service {
 
+    /**
+     * Sent by Starter.restartPodsService: reload the settings and restart the scanner
+     */
+    public static final String ACTION_RECONFIGURE = "com.dosse.airpods.RECONFIGURE";
+
     private BluetoothLeScanner btScanner;
-    private PodsStatus status = PodsStatus.DISCONNECTED;
+    private final ServiceStateHolder state = new ServiceStateHolder();
 
-    private static NotificationThread n = null;
-    private static boolean maybeConnected = false;
+    private static volatile NotificationThread n = null;
 
     private BroadcastReceiver btReceiver = null;
     private BroadcastReceiver screenReceiver = null;
+    private BroadcastReceiver locationReceiver = null;
     private PodsStatusScanCallback scanCallback = null;
 
+    private HandlerThread worker = null;
+    private Handler handler = null;
+    private HandlerThread beaconThread = null;
+    private Handler beaconHandler = null;
+    private boolean justCreated = false;
+    private volatile ScanScheduler scanScheduler = null;
+    private volatile boolean batterySaver = false;
+    private volatile boolean opportunistic = false;
+    private long opportunisticSince;
+    private boolean offloadedBatching = false;
+    private volatile DeviceTable devices = null;
+    private volatile BatteryHistory history = null;
+    private volatile BeaconTrace.Writer trace = null;
+    private volatile ScanFilterLearner filterLearner = null;
+    private StatusSnapshot snapshot = null;
+    private final HeadsetBattery headsetBattery = new HeadsetBattery();
+    private final BatteryEstimator estimator = new BatteryEstimator(); //for the status in state, the devices have their own
+    private boolean scanSuspended = false;
+    private final ScanStartLimiter scanStarts = new ScanStartLimiter();
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    private SharedPreferences prefs = null;
+
     /**
      * The following method (startAirPodsScanner) creates a bluetoth LE scanner.
      * This scanner receives all beacons from nearby BLE devices (not just your devices!) so we need to do 3 things:
@@ -47,15 +89,17 @@ public class PodsService extends Service {
      * - Make sure that it is YOUR pair of AirPods
      * - Decode the beacon to get the status
      *
-     * After decoding a beacon, the status is written to status so that the NotificationThread can use the information
+     * After decoding a beacon, the status is published to state and the NotificationThread is told to use the information
      *
+     * Called on the worker thread. The scan callback runs on the main thread, it only copies the beacons to a BeaconRing,
+     * they are decoded on beaconThread and the result is posted to the ScanScheduler.
      */
 
     private void startAirPodsScanner() {
         try {
             debug("START SCANNER");
-            SharedPreferences prefs=getSharedPreferences("openpods", MODE_PRIVATE);
-            boolean batterySaver = prefs.getBoolean("batterySaver",false);
+            scanSuspended = false;
+            handler.removeCallbacks(headsetTimer);
             BluetoothManager btManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
             BluetoothAdapter btAdapter = btManager.getAdapter();
             if (btAdapter == null) {
@@ -67,6 +111,7 @@ public class PodsService extends Service {
                 btScanner.stopScan(scanCallback);
                 scanCallback = null;
             }
+            scanScheduler.stop();
 
             if (!btAdapter.isEnabled()) {
                 debug("BT Off");
@@ -74,14 +119,72 @@ public class PodsService extends Service {
             }
 
             btScanner = btAdapter.getBluetoothLeScanner();
+            offloadedBatching = btAdapter.isOffloadedScanBatchingSupported();
             scanCallback = new PodsStatusScanCallback() {
                 @Override
                 public void onStatus(PodsStatus newStatus) {
-                    status = newStatus;
+                    ServiceState previous = state.setStatus(newStatus);
+                    headsetBattery.onBeacon(newStatus);
+                    if(opportunistic) {
+                        Metrics.increment(Metrics.STATUS_OPPORTUNISTIC);
+                    }
+                    BatteryHistory h = history;
+                    if(h != null) {
+                        h.append(newStatus.getTimestamp(), newStatus.getPacked());
+                    }
+                    estimator.update(newStatus);
+                    StartupTrace.mark(StartupTrace.FIRST_STATUS);
+                    handler.post(newStatus.equals(previous.getStatus()) ? scanStatusRefreshed : scanStatusChanged);
+                    updateNotification(getReceivedNs());
+                }
+
+                @Override
+                public void onStatusRefreshed(PodsStatus refreshedStatus, boolean wasStale) {
+                    headsetBattery.onBeacon(refreshedStatus);
+                    if(opportunistic) {
+                        Metrics.increment(Metrics.STATUS_OPPORTUNISTIC);
+                    }
+                    handler.post(scanStatusRefreshed);
+                    if(wasStale) {
+                        state.refreshStatus(refreshedStatus);
+                        updateNotification(getReceivedNs()); //the battery levels were hidden, show them again
+                    } else {
+                        scheduleSnapshot(); //only the timestamp changed, see StatusSnapshot.TIMESTAMP_WRITE_INTERVAL_MS
+                    }
+                }
+
+                @Override
+                public void onDeviceStatus(DeviceTable devices, int slot) {
+                    devices.getEstimator(slot).update(devices.getStatus(slot));
+                    updateNotification(getReceivedNs());
+                }
+
+                @Override
+                public boolean isConnected() {
+                    return state.get().isConnected();
+                }
+
+                @Override
+                public void onFiltersLearned() {
+                    handler.post(() -> {
+                        debug("SCAN FILTERS LEARNED");
+                        prefs.edit().putString("learnedFilters", filterLearner.save()).apply();
+                        restartScan();
+                    });
                 }
             };
 
-            btScanner.startScan(getScanFilters(), getScanSettings(batterySaver), scanCallback);
+            scanCallback.setDeviceTable(devices);
+            scanCallback.setTrace(trace);
+            scanCallback.setFilterLearner(filterLearner);
+            scanCallback.setHandler(beaconHandler);
+
+            if(batterySaver) {
+                startScan(getBatterySaverScanSettings());
+            } else {
+                scanScheduler.start(); //starts the scan in low latency mode, then lowers it while the status is stable
+            }
+            StartupTrace.mark(StartupTrace.SCANNER_STARTED);
         } catch (Throwable t) {
             error(t);
         }
@@ -95,12 +198,172 @@ public class PodsService extends Service {
                 btScanner.stopScan(scanCallback);
                 scanCallback = null;
             }
-            status = PodsStatus.DISCONNECTED;
+            scanScheduler.stop();
+            scanSuspended = false;
+            handler.removeCallbacks(headsetTimer);
+            handler.removeCallbacks(delayedRestart);
+            state.setStatus(PodsStatus.DISCONNECTED);
+            updateNotification();
         }catch (Throwable t){
             error(t);
         }
     }
 
+    /**
+     * Used by the ScanScheduler to restart the scanner in a different mode, and to wake itself up later
+     */
+    private final ScanScheduler.Scanner scanModeSwitcher = new ScanScheduler.Scanner() {
+        @Override
+        public void startScan(int mode) {
+            try {
+                if(btScanner != null && scanCallback != null) {
+                    event(Logger.EVENT_SCAN_MODE, mode);
+                    startScan(getScanSettings(mode, offloadedBatching));
+                }
+            } catch (Throwable t) {
+                error(t);
+            }
+        }
+
+        @Override
+        public void schedule(long delayMs) {
+            handler.removeCallbacks(scanTimer);
+            if(delayMs >= 0) {
+                handler.postDelayed(scanTimer, delayMs);
+            }
+        }
+    };
+
+    private final Runnable scanTimer = () -> scanScheduler.onTimer();
+    private final Runnable scanStatusChanged = () -> {
+        scanScheduler.onStatus(true);
+        updateScanSuspension();
+    };
+    private final Runnable scanStatusRefreshed = () -> {
+        scanScheduler.onStatus(false);
+        updateScanSuspension();
+    };
+
+    /**
+     * While the AirPods report their battery over HFP and the case status is recent enough, the scan is stopped
+     * and the status comes from HeadsetBattery, refreshed every HEADSET_REFRESH_MS so that it isn't shown as stale.
+     * The scan is started again when HeadsetBattery needs a beacon, or when the AirPods disconnect.
+     * Never in multi-device mode, since the other devices only have beacons.
+     * These statuses are not real measurements, so they don't go into the history or the estimator.
+     * Called on the worker thread.
+     */
+    private void updateScanSuspension() {
+        long now = System.currentTimeMillis();
+        handler.removeCallbacks(headsetTimer);
+        if(devices == null && !headsetBattery.isScanNeeded(now)) {
+            if(!scanSuspended && btScanner != null && scanCallback != null) {
+                debug("SCAN SUSPENDED, USING HEADSET BATTERY");
+                Metrics.increment(Metrics.SCAN_SUSPENSIONS);
+                try {
+                    btScanner.stopScan(scanCallback);
+                } catch (Throwable t) {
+                    error(t);
+                }
+                scanCallback = null;
+                scanScheduler.stop();
+                scanSuspended = true;
+            }
+            if(scanSuspended) {
+                state.setStatus(headsetBattery.getStatus(now));
+                updateNotification();
+                handler.postDelayed(headsetTimer, Math.min(HEADSET_REFRESH_MS, headsetBattery.getRefreshDelay(now)));
+            }
+        } else if(scanSuspended) {
+            debug("SCAN RESUMED");
+            startAirPodsScanner();
+        }
+    }
+
+    private static final long HEADSET_REFRESH_MS = NotificationBuilder.TIMEOUT_CONNECTED / 2;
+    private final Runnable headsetTimer = this::updateScanSuspension;
+    private final Runnable headsetDisconnected = () -> {
+        headsetBattery.onDisconnected();
+        updateScanSuspension();
+    };
+
+    /**
+     * Battery saver scans in low power mode, or in opportunistic mode while the screen is off: then we only get the beacons
+     * found by scans started by other apps or the system, without using the radio ourselves, instead of getting nothing.
+     */
+    private ScanSettings getBatterySaverScanSettings() {
+        return getScanSettings(opportunistic ? ScanSettings.SCAN_MODE_OPPORTUNISTIC : ScanSettings.SCAN_MODE_LOW_POWER, offloadedBatching);
+    }
+
+    /**
+     * Switches battery saver between low power and opportunistic mode, the scan must be restarted to apply it.
+     * The switches and the time spent in opportunistic mode are counted in Metrics. Called on the worker thread.
+     */
+    private void setOpportunistic(boolean enable) {
+        if(enable == opportunistic) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if(enable) {
+            Metrics.increment(Metrics.SCAN_OPPORTUNISTIC);
+            opportunisticSince = now;
+        } else {
+            Metrics.add(Metrics.SCAN_OPPORTUNISTIC_MS, now - opportunisticSince);
+        }
+        opportunistic = enable;
+        event(Logger.EVENT_SCAN_MODE, enable ? ScanSettings.SCAN_MODE_OPPORTUNISTIC : ScanSettings.SCAN_MODE_LOW_POWER);
+    }
+
+    /**
+     * Restart the scan with the same settings, to install new filters
+     */
+    private void restartScan() {
+        try {
+            if(btScanner == null || scanCallback == null) {
+                return;
+            }
+            if(batterySaver) {
+                startScan(getBatterySaverScanSettings());
+            } else if(scanScheduler.getMode() != ScanScheduler.MODE_OFF) {
+                scanModeSwitcher.startScan(scanScheduler.getMode());
+            }
+        } catch (Throwable t) {
+            error(t);
+        }
+    }
+
+    /**
+     * (Re)starts the scan with the current filters, unless Android would refuse it because we started too many scans recently
+     * (see ScanStartLimiter): then the running scan is left alone and restartScan is called when the start is allowed.
+     * Called on the worker thread, with btScanner and scanCallback set.
+     */
+    private void startScan(ScanSettings settings) {
+        handler.removeCallbacks(delayedRestart);
+        long wait = scanStarts.tryStart(SystemClock.elapsedRealtime());
+        if(wait > 0) {
+            debug("SCAN START DELAYED BY " + wait + " MS");
+            Metrics.increment(Metrics.SCAN_STARTS_DELAYED);
+            handler.postDelayed(delayedRestart, wait);
+            return;
+        }
+        btScanner.stopScan(scanCallback);
+        btScanner.startScan(filterLearner.getScanFilters(), settings, scanCallback);
+    }
+
+    private final Runnable delayedRestart = this::restartScan;
+
+    /**
+     * AirPods connected: scan in low latency mode, and look for them with the broad filter until we know which beacons are theirs.
+     * Both need a restart of the scan, only one is done.
+     */
+    private void discoverFilters() {
+        boolean filtersChanged = filterLearner.startDiscovery();
+        int mode = scanScheduler.getMode();
+        scanScheduler.onWakeUp();
+        if(filtersChanged && scanScheduler.getMode() == mode) {
+            restartScan();
+        }
+    }
+
     private boolean isLocationEnabled(){
         if(Build.VERSION.SDK_INT>=Build.VERSION_CODES.P){
             LocationManager service = (LocationManager) getSystemService(LOCATION_SERVICE);
@@ -115,6 +378,44 @@ public class PodsService extends Service {
         }
     }
 
+    /**
+     * Tells the NotificationThread that something it displays may have changed, and schedules a write of the snapshot
+     */
+    private void updateNotification() {
+        updateNotification(0);
+    }
+
+    /**
+     * Same as above, for a change caused by a beacon received at beaconReceivedNs (see PodsStatusScanCallback.getReceivedNs)
+     */
+    private void updateNotification(long beaconReceivedNs) {
+        NotificationThread thread = n;
+        if(thread != null) {
+            thread.update(beaconReceivedNs);
+        }
+        scheduleSnapshot();
+    }
+
+    private void scheduleSnapshot() {
+        if(snapshotPending.compareAndSet(false, true)) {
+            handler.postDelayed(snapshotWriter, StatusSnapshot.MIN_WRITE_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Writes the snapshot at most once every MIN_WRITE_INTERVAL_MS. Runs on the worker thread.
+     */
+    private final Runnable snapshotWriter = this::writeSnapshot;
+
+    private void writeSnapshot() {
+        snapshotPending.set(false);
+        try {
+            snapshot.write(state.get(), devices);
+        } catch (Throwable t) {
+            error(t);
+        }
+    }
+
     public PodsService() {
     }
 
@@ -125,18 +426,75 @@ public class PodsService extends Service {
 
 
     /**
-     * When the service is created, we register to get as many bluetooth and airpods related events as possible.
-     * ACL_CONNECTED and ACL_DISCONNECTED should have been enough, but you never know with android these days.
+     * Shows the last known state (saved by a previous instance, see StatusSnapshot) right away,
+     * then sets up everything else on the worker thread
      */
     @Override
     public void onCreate() {
         super.onCreate();
-        try{
-            if(btReceiver != null) {
-                unregisterReceiver(btReceiver);
-                btReceiver = null;
+        StartupTrace.mark(StartupTrace.SERVICE_CREATED);
+        snapshot = new StatusSnapshot(new File(getFilesDir(), StatusSnapshot.FILE_NAME));
+        ServiceState saved = snapshot.read();
+        if(saved != null) {
+            state.restore(saved);
+            if(snapshot.hasDevices()) {
+                //multiDevice was on, start in that mode so that the single notification isn't posted until the settings are read
+                devices = new DeviceTable(DeviceTable.DEFAULT_CAPACITY);
+                snapshot.restoreDevices(devices, SystemClock.elapsedRealtime());
             }
-        }catch (Throwable t){
+        }
+        startNotificationThread();
+        beaconThread = new HandlerThread("PodsService beacons");
+        beaconThread.start();
+        beaconHandler = new Handler(beaconThread.getLooper());
+        worker = new HandlerThread("PodsService");
+        worker.start();
+        handler = new Handler(worker.getLooper());
+        handler.post(this::init);
+        justCreated = true;
+    }
+
+    /**
+     * Reads the settings. Called on the worker thread, with the scanner stopped.
+     */
+    private void loadPreferences() {
+        if(prefs == null) {
+            prefs = SettingsActivity.getPreferences(this);
+        }
+        batterySaver = prefs.getBoolean("batterySaver",false);
+        boolean multiDevice = prefs.getBoolean("multiDevice",false);
+        if(multiDevice != (devices != null)) {
+            devices = multiDevice ? new DeviceTable(DeviceTable.DEFAULT_CAPACITY) : null;
+        }
+        if(filterLearner == null) {
+            filterLearner = new ScanFilterLearner(prefs.getString("learnedFilters", ""));
+        }
+        scanScheduler = new ScanScheduler(scanModeSwitcher, SystemClock::elapsedRealtime,
+                prefs.getLong("scanBalancedAfter", ScanScheduler.DEFAULT_BALANCED_AFTER_MS),
+                prefs.getLong("scanLowPowerAfter", ScanScheduler.DEFAULT_LOW_POWER_AFTER_MS),
+                prefs.getLong("scanStaleAfter", ScanScheduler.DEFAULT_STALE_AFTER_MS));
+        StartupTrace.mark(StartupTrace.PREFERENCES_LOADED);
+    }
+
+    /**
+     * We register to get as many bluetooth and airpods related events as possible.
+     * ACL_CONNECTED and ACL_DISCONNECTED should have been enough, but you never know with android these days.
+     * Called on the worker thread, the receivers are delivered there too.
+     */
+    private void init() {
+        boolean multiDevice = devices != null;
+        loadPreferences();
+        if(devices != null) {
+            snapshot.restoreDevices(devices, SystemClock.elapsedRealtime());
+        }
+        if(multiDevice != (devices != null)) {
+            //onCreate guessed the wrong mode from the snapshot, let the NotificationThread switch
+            updateNotification();
+        }
+        try {
+            history = new BatteryHistory(new File(getFilesDir(), BatteryHistory.FILE_NAME), BatteryHistory.DEFAULT_CAPACITY);
+            estimator.seed(history, System.currentTimeMillis());
+        } catch (Throwable t) {
             error(t);
         }
         btReceiver = new BluetoothReceiver() {
@@ -151,7 +509,10 @@ public class PodsService extends Service {
             public void onStop() {
                 //bluetooth turned off, stop scanner and remove notification
                 debug("BT OFF");
-                maybeConnected = false;
+                BluetoothDeviceInfo.setConnected(null);
+                headsetBattery.onDisconnected();
+                state.setConnected(false);
+                updateNotification();
                 stopAirPodsScanner();
             }
 
@@ -160,7 +521,10 @@ public class PodsService extends Service {
                 if (checkUUID(bluetoothDevice)) { //airpods filter
                     //airpods connected, show notification
                     debug("ACL CONNECTED");
-                    maybeConnected = true;
+                    BluetoothDeviceInfo.setConnected(bluetoothDevice);
+                    state.setConnected(true);
+                    updateNotification();
+                    discoverFilters();
                 }
             }
 
@@ -169,76 +533,181 @@ public class PodsService extends Service {
                 if (checkUUID(bluetoothDevice)) { //airpods filter
                     //airpods disconnected, remove notification but leave the scanner going
                     debug("ACL DISCONNECTED");
-                    maybeConnected = false;
+                    BluetoothDeviceInfo.setConnected(null);
+                    state.setConnected(false);
+                    updateNotification();
+                    headsetDisconnected.run();
                 }
            }
+
+            @Override
+            public void onBatteryLevel(BluetoothDevice bluetoothDevice, int level) {
+                if (checkUUID(bluetoothDevice)) {
+                    event(Logger.EVENT_HEADSET_BATTERY, level);
+                    Metrics.increment(Metrics.HEADSET_BATTERY_REPORTS);
+                    headsetBattery.onLevel(level, System.currentTimeMillis());
+                    updateScanSuspension();
+                }
+            }
+
+            @Override
+            public void onModel(BluetoothDevice bluetoothDevice, int model) {
+                if (checkUUID(bluetoothDevice)) {
+                    headsetBattery.onModel(model);
+                }
+            }
         };
         try{
-            registerReceiver(btReceiver,BluetoothReceiver.buildFilter());
+            registerReceiver(btReceiver,BluetoothReceiver.buildFilter(), null, handler);
         }catch(Throwable t){
             error(t);
         }
         //this BT Profile Proxy allows us to know if airpods are already connected when the app is started.
         // It also fires an event when BT is turned off, in case the BroadcastReceiver doesn't do its job
         BluetoothAdapter ba=((BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE)).getAdapter();
-        ba.getProfileProxy(getApplicationContext(), new BluetoothListener() {
+        // Its callbacks are delivered on the worker thread, like the receivers.
+        ba.getProfileProxy(getApplicationContext(), new BluetoothListener(handler) {
             @Override
             public boolean onConnect(BluetoothDevice device) {
                 debug("BT PROXY SERVICE CONNECTED");
                 if(checkUUID(device)){
                     debug("BT PROXY: AIRPODS ALREADY CONNECTED");
-                    maybeConnected=true;
+                    BluetoothDeviceInfo.setConnected(device);
+                    state.setConnected(true);
+                    updateNotification();
+                    discoverFilters();
                     return true;
                 }
                 return false;
             }
 
+            @Override
+            public void onNotConnected() {
+                //the state shown while starting may say they're connected
+                BluetoothDeviceInfo.setConnected(null);
+                state.setConnected(false);
+                updateNotification();
+                headsetDisconnected.run();
+            }
+
             @Override
             public void onDisconnect() {
                 debug("BT PROXY SERVICE DISCONNECTED ");
-                maybeConnected=false;
+                BluetoothDeviceInfo.setConnected(null);
+                state.setConnected(false);
+                updateNotification();
+                headsetDisconnected.run();
             }
         },BluetoothProfile.HEADSET);
-        if(ba.isEnabled()) {
-            //if BT is already on when the app is started, start the scanner without waiting for an event to happen
-            startAirPodsScanner();
+
+        //Screen on/off listener to scan opportunistically when the screen is off to save battery, or to scan faster when it's turned on
+        screenReceiver = new ScreenReceiver() {
+            @Override
+            public void onStart() {
+                debug( "SCREEN ON");
+                if(batterySaver) {
+                    setOpportunistic(false);
+                    startAirPodsScanner();
+                } else {
+                    scanScheduler.onWakeUp();
+                }
+            }
+
+            @Override
+            public void onStop() {
+                debug( "SCREEN OFF");
+                if(history != null) {
+                    history.flush();
+                }
+                if(batterySaver) {
+                    //keep the status we have, and keep it fresh if someone else is scanning
+                    setOpportunistic(true);
+                    restartScan();
+                }
+            }
+        };
+        try {
+            registerReceiver(screenReceiver, ScreenReceiver.buildFilter(), null, handler);
+        } catch (Throwable t) {
+            error(t);
         }
 
-        //Screen on/off listener to suspend scanning when the screen is off, to save battery
-        try{
-            if(screenReceiver != null) {
-                unregisterReceiver(screenReceiver);
-                screenReceiver = null;
+        //Location on/off listener, the notification tells the user to turn it on when it's off
+        state.setLocationEnabled(isLocationEnabled());
+        locationReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                debug("LOCATION CHANGED");
+                state.setLocationEnabled(isLocationEnabled());
+                updateNotification();
             }
-        }catch (Throwable t){
+        };
+        try {
+            registerReceiver(locationReceiver, new IntentFilter(LocationManager.PROVIDERS_CHANGED_ACTION), null, handler);
+        } catch (Throwable t) {
             error(t);
         }
-        SharedPreferences prefs=getSharedPreferences("openpods", MODE_PRIVATE);
-        if(prefs.getBoolean("batterySaver",false)) {
-            screenReceiver = new ScreenReceiver() {
-                @Override
-                public void onStart() {
-                    debug( "SCREEN ON");
-                    startAirPodsScanner();
-                }
+        StartupTrace.mark(StartupTrace.RECEIVERS_REGISTERED);
 
-                @Override
-                public void onStop() {
-                    debug( "SCREEN OFF");
-                    stopAirPodsScanner();
-                }
-            };
-            try {
-                registerReceiver(screenReceiver, ScreenReceiver.buildFilter());
-            } catch (Throwable t) {
-                error(t);
+        if(ba.isEnabled()) {
+            //if BT is already on when the app is started, start the scanner without waiting for an event to happen
+            startAirPodsScanner();
+        }
+    }
+
+    /**
+     * The settings changed (see ACTION_RECONFIGURE), reload them and restart the scanner. Called on the worker thread.
+     */
+    private void reconfigure() {
+        debug("RECONFIGURE");
+        boolean multiDevice = devices != null;
+        scanScheduler.stop();
+        loadPreferences();
+        if(!batterySaver) {
+            setOpportunistic(false);
+        }
+        if(multiDevice != (devices != null)) {
+            //the notifications are different, start over
+            NotificationThread thread = n;
+            n = null;
+            if(thread != null) {
+                thread.quit();
             }
+            startNotificationThread();
         }
+        startAirPodsScanner();
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        //the thread reads the state of this instance, the next instance of the service will start a new one
+        NotificationThread thread = n;
+        n = null;
+        if(thread != null) {
+            thread.quit();
+        }
+        handler.post(this::shutdown);
+        worker.quitSafely();
+        beaconThread.quitSafely();
+    }
+
+    /**
+     * Undoes init. Called on the worker thread.
+     */
+    private void shutdown() {
+        setOpportunistic(false);
+        try{
+            if(btScanner != null && scanCallback != null) {
+                btScanner.stopScan(scanCallback);
+                scanCallback = null;
+            }
+            scanScheduler.stop();
+        } catch (Throwable t){
+            error(t);
+        }
+        event(Logger.EVENT_SCAN_TIME, scanScheduler.getTimeInMode(ScanScheduler.MODE_LOW_POWER),
+                scanScheduler.getTimeInMode(ScanScheduler.MODE_BALANCED), scanScheduler.getTimeInMode(ScanScheduler.MODE_LOW_LATENCY));
         try{
             if(btReceiver != null) {
                 unregisterReceiver(btReceiver);
@@ -255,31 +724,150 @@ public class PodsService extends Service {
         } catch (Throwable t){
             error(t);
         }
+        try{
+            if(locationReceiver != null) {
+                unregisterReceiver(locationReceiver);
+                locationReceiver = null;
+            }
+        } catch (Throwable t){
+            error(t);
+        }
+        try{
+            if(history != null) {
+                history.close();
+                history = null;
+            }
+        } catch (Throwable t){
+            error(t);
+        }
+        handler.removeCallbacks(snapshotWriter);
+        snapshotPending.set(false);
+        try {
+            snapshot.writeFinal(state.get(), devices);
+        } catch (Throwable t) {
+            error(t);
+        }
+        if(Logger.isEventsEnabled()) {
+            Logger.flush(new File(getFilesDir(), Logger.FILE_NAME));
+        }
+        stopTrace();
+    }
+
+    /**
+     * Start recording the beacons to files/trace.bin, see BeaconTrace
+     */
+    private void startTrace() {
+        stopTrace();
+        try {
+            trace = new BeaconTrace.Writer(new File(getFilesDir(), BeaconTrace.FILE_NAME));
+            if(scanCallback != null) {
+                scanCallback.setTrace(trace);
+            }
+        } catch (Throwable t) {
+            error(t);
+        }
+    }
+
+    private void stopTrace() {
+        if(trace == null) {
+            return;
+        }
+        if(scanCallback != null) {
+            scanCallback.setTrace(null);
+        }
+        try {
+            trace.close();
+        } catch (Throwable t) {
+            error(t);
+        }
+        trace = null;
+    }
+
+    /**
+     * adb shell dumpsys activity service com.dosse.airpods/.PodsService [on|off|reset|trace-start|trace-stop|filters-reset|log-on|log-off|log-flush]
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if(args != null && args.length > 0) {
+            if("on".equals(args[0])) {
+                Metrics.setEnabled(true);
+            } else if("off".equals(args[0])) {
+                Metrics.setEnabled(false);
+            } else if("reset".equals(args[0])) {
+                Metrics.reset();
+            } else if("trace-start".equals(args[0])) {
+                handler.post(this::startTrace);
+            } else if("trace-stop".equals(args[0])) {
+                handler.post(this::stopTrace);
+            } else if("filters-reset".equals(args[0])) {
+                handler.post(() -> {
+                    filterLearner.clear();
+                    prefs.edit().remove("learnedFilters").apply();
+                    restartScan();
+                });
+            } else if("log-on".equals(args[0])) {
+                Logger.setEventsEnabled(true);
+            } else if("log-off".equals(args[0])) {
+                Logger.setEventsEnabled(false);
+            } else if("log-flush".equals(args[0])) {
+                Logger.flush(new File(getFilesDir(), Logger.FILE_NAME));
+            }
+        }
+        Metrics.dump(writer);
+        StartupTrace.dump(writer);
+        Logger.dump(writer, 50);
+        ScanScheduler scheduler = scanScheduler;
+        if(scheduler != null) {
+            writer.println("Scan mode: " + scheduler.getMode() + (batterySaver ? " (battery saver" + (opportunistic ? ", opportunistic)" : ")") : ""));
+            writer.println("  time in low power: " + scheduler.getTimeInMode(ScanScheduler.MODE_LOW_POWER) + "ms");
+            writer.println("  time in balanced: " + scheduler.getTimeInMode(ScanScheduler.MODE_BALANCED) + "ms");
+            writer.println("  time in low latency: " + scheduler.getTimeInMode(ScanScheduler.MODE_LOW_LATENCY) + "ms");
+        }
+        ScanFilterLearner learner = filterLearner;
+        if(learner != null) {
+            writer.println("Scan filters: " + (learner.isUsingLearnedFilters() ? "learned" : "broad") +
+                    (learner.isDiscovering() ? " (discovering)" : "") + ", " + learner.getCount() + " known pairs");
+        }
+        ServiceState current = state.get();
+        writer.println("Status: " + current.getStatus().getStatusString() + (current.isConnected() ? " (connected)" : "") +
+                (current.isLocationEnabled() ? "" : " (location off)") + " generation " + current.getGeneration());
+        BatteryHistory currentHistory = history;
+        if(currentHistory != null) {
+            writer.println("History: " + currentHistory.size() + "/" + currentHistory.getCapacity() + " samples");
+        }
+        BeaconTrace.Writer currentTrace = trace;
+        if(currentTrace != null) {
+            writer.println("Trace: " + currentTrace.getCount() + " beacons");
+        }
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if(n == null || !n.isAlive()){
-            n = new NotificationThread(this) {
+        startNotificationThread();
+        if(intent != null && ACTION_RECONFIGURE.equals(intent.getAction()) && !justCreated) {
+            handler.post(this::reconfigure);
+        }
+        justCreated = false;
+        return START_STICKY;
+    }
 
-                @Override
-                public boolean isConnected() {
-                    return maybeConnected;
-                }
+    private synchronized void startNotificationThread() {
+        if(n == null || !n.isAlive()){
+            n = new NotificationThread(this, estimator) {
 
                 @Override
-                public boolean isLocationEnabled() {
-                    return PodsService.this.isLocationEnabled();
+                public ServiceState getServiceState() {
+                    return state.get();
                 }
 
                 @Override
-                public PodsStatus getStatus() {
-                    return status;
+                public DeviceTable getDevices() {
+                    return devices;
                 }
             };
             n.start();
+            StartupTrace.mark(StartupTrace.NOTIFICATION_THREAD_STARTED);
         }
-        return START_STICKY;
     }
 
 }
@@ -4,78 +4,137 @@ package com.dosse.airpods;
  * Decoding the beacon:
  * This was done through reverse engineering. Hopefully it's correct.
  * - The beacon coming from a pair of AirPods contains a manufacturer specific data field n°76 of 27 bytes
- * - We convert this data to a hexadecimal string
- * - The 12th and 13th characters in the string represent the charge of the left and right pods.
+ * - We read the nibbles we need straight from these bytes (byte n holds hex digits 2n and 2n+1 of the old hex string)
+ * - The high and low nibbles of byte 6 represent the charge of the left and right pods.
  *     Under unknown circumstances, they are right and left instead (see isFlipped).
  *     Values between 0 and 10 are battery 0-100%; Value 15 means it's disconnected
- * - The 15th character in the string represents the charge of the case.
+ * - The low nibble of byte 7 represents the charge of the case.
  *     Values between 0 and 10 are battery 0-100%; Value 15 means it's disconnected
- * - The 14th character in the string represents the "in charge" status.
+ * - The high nibble of byte 7 represents the "in charge" status.
  *     Bit 0 (LSB) is the left pod; Bit 1 is the right pod; Bit 2 is the case.
  *     Bit 3 might be case open/closed but I'm not sure and it's not used
- * - The 7th character in the string represents the AirPods model (E=AirPods pro)
+ * - Byte 3 represents the model (0E=AirPods pro), see PodsModel
+ *
+ * Everything we decode fits in a single long (see pack), which is also used to compare statuses:
+ * two statuses are equal if they would be displayed the same way, regardless of when they were received.
  */
 
 public class PodsStatus {
 
-    public static final String MODEL_AIRPODS_NORMAL = "airpods12";
-    public static final String MODEL_AIRPODS_PRO = "airpodspro";
     public static final int DISCONNECTED_STATUS = 15;
     public static final int MAX_CONNECTED_STATUS = 10;
 
     public static final PodsStatus DISCONNECTED = new PodsStatus();
 
+    //layout of the packed status: 4 bits per battery level, then the charge bits (same order as in the beacon), then the model
+    private static final int PACKED_LEFT_SHIFT = 0;
+    private static final int PACKED_RIGHT_SHIFT = 4;
+    private static final int PACKED_CASE_SHIFT = 8;
+    private static final int PACKED_CHARGE_SHIFT = 12;
+    private static final int PACKED_MODEL_SHIFT = 16;
+    private static final long PACKED_DISCONNECTED = ((long) DISCONNECTED_STATUS << PACKED_LEFT_SHIFT) |
+            ((long) DISCONNECTED_STATUS << PACKED_RIGHT_SHIFT) |
+            ((long) DISCONNECTED_STATUS << PACKED_CASE_SHIFT);
+
     private int leftStatus = DISCONNECTED_STATUS;
     private int rightStatus = DISCONNECTED_STATUS;
     private int caseStatus = DISCONNECTED_STATUS;
     private boolean chargeL = false;
     private boolean chargeR = false;
     private boolean chargeCase = false;
-    private String model = MODEL_AIRPODS_NORMAL;
+    private PodsModel model = PodsModel.UNKNOWN;
     private BluetoothDeviceInfo device = null;
-    private long timestamp = System.currentTimeMillis();
+    private long packed = PACKED_DISCONNECTED;
+    private volatile long timestamp = System.currentTimeMillis();
 
     public PodsStatus() {
 
     }
 
-    public PodsStatus(String status, BluetoothDeviceInfo device) {
-        if(status == null) {
+    public PodsStatus(byte[] data, BluetoothDeviceInfo device) {
+        if(data == null) {
             return;
         }
 
-        String strLeft = ""; //left airpod (0-10 batt; 15=disconnected)
-        String strRight = ""; //right airpod (0-10 batt; 15=disconnected)
-        if (isFlipped(status)) {
-            strLeft = String.valueOf(status.charAt(12));
-            strRight = String.valueOf(status.charAt(13));
-        } else {
-            strLeft = String.valueOf(status.charAt(13));
-            strRight = String.valueOf(status.charAt(12));
-        }
-        String strCase = String.valueOf(status.charAt(15)); //case (0-10 batt; 15=disconnected)
-        String strStatus = String.valueOf(status.charAt(14)); //charge status (bit 0=left; bit 1=right; bit 2=case)
-        leftStatus = Integer.parseInt(strLeft, 16);
-        rightStatus = Integer.parseInt(strRight, 16);
-        caseStatus = Integer.parseInt(strCase, 16);
-        int chargeStatus = Integer.parseInt(strStatus, 16);
+        unpack(pack(data));
+        this.device = device;
+    }
+
+    /**
+     * Rebuilds a status saved with getPacked and getTimestamp
+     */
+    public PodsStatus(long packed, long timestamp) {
+        unpack(packed);
+        this.timestamp = timestamp;
+    }
+
+    private void unpack(long packed) {
+        this.packed = packed;
+        leftStatus = (int) (packed >>> PACKED_LEFT_SHIFT) & 0x0F;
+        rightStatus = (int) (packed >>> PACKED_RIGHT_SHIFT) & 0x0F;
+        caseStatus = (int) (packed >>> PACKED_CASE_SHIFT) & 0x0F;
+        int chargeStatus = (int) (packed >>> PACKED_CHARGE_SHIFT) & 0x0F;
         chargeL = (chargeStatus & 0b00000001) != 0;
         chargeR = (chargeStatus & 0b00000010) != 0;
         chargeCase = (chargeStatus & 0b00000100) != 0;
-        model = (status.charAt(7) == 'E') ? MODEL_AIRPODS_PRO : MODEL_AIRPODS_NORMAL; //detect if these are AirPods pro or regular ones
+        model = PodsModel.fromId((int) (packed >>> PACKED_MODEL_SHIFT) & 0xFF);
+    }
 
-        this.device = device;
+    /**
+     * Decodes a beacon into a single long, without creating a PodsStatus
+     */
+    public static long pack(byte[] data) {
+        int pods = data[6] & 0xFF; //left and right airpod (0-10 batt; 15=disconnected)
+        long left, right;
+        if (isFlipped(data)) {
+            left = pods >>> 4;
+            right = pods & 0x0F;
+        } else {
+            left = pods & 0x0F;
+            right = pods >>> 4;
+        }
+        long caseLevel = data[7] & 0x0F; //case (0-10 batt; 15=disconnected)
+        long chargeStatus = (data[7] & 0xF0) >>> 4; //charge status (bit 0=left; bit 1=right; bit 2=case)
+        long model = data[3] & 0xFF; //model (0E=AirPods pro)
+        return (left << PACKED_LEFT_SHIFT) |
+                (right << PACKED_RIGHT_SHIFT) |
+                (caseLevel << PACKED_CASE_SHIFT) |
+                ((chargeStatus & 0b00000111) << PACKED_CHARGE_SHIFT) |
+                (model << PACKED_MODEL_SHIFT);
     }
 
-    private static boolean isFlipped(String str) {
-        return (Integer.toString(Integer.parseInt(String.valueOf(str.charAt(10)),16) + 0x10,2)).charAt(3) == '0';
+    /**
+     * Packs a status that doesn't come from a beacon (see HeadsetBattery). Levels are 0-10 or DISCONNECTED_STATUS,
+     * charge bits and model are the same as in the beacon.
+     */
+    public static long pack(int left, int right, int caseLevel, int chargeStatus, int model) {
+        return ((long) (left & 0x0F) << PACKED_LEFT_SHIFT) |
+                ((long) (right & 0x0F) << PACKED_RIGHT_SHIFT) |
+                ((long) (caseLevel & 0x0F) << PACKED_CASE_SHIFT) |
+                ((long) (chargeStatus & 0b00000111) << PACKED_CHARGE_SHIFT) |
+                ((long) (model & 0xFF) << PACKED_MODEL_SHIFT);
+    }
+
+    private static boolean isFlipped(byte[] data) {
+        return (data[5] & 0b00100000) == 0;
+    }
+
+    public long getPacked() {
+        return packed;
+    }
+
+    /**
+     * A beacon with the same status was received again
+     */
+    void refresh(long timestamp) {
+        this.timestamp = timestamp;
     }
 
     public String getStatusString() {
         return "Left: " + leftStatus + (chargeL ? "+" : "") + " " +
                 "Right: " + rightStatus + (chargeR ? "+" : "") + " " +
                 "Case: " + caseStatus + (chargeCase ? "+" : "") + " " +
-                "Model: " + model;
+                "Model: " + model.getName();
     }
 
     public String getLeftStatus() {
@@ -91,8 +150,45 @@ public class PodsStatus {
     }
 
     private String buildStatus(int status, boolean charge) {
-        return (status == MAX_CONNECTED_STATUS ? "100%" :
-                status < MAX_CONNECTED_STATUS ? (((status) * 10 + 5) + "%" + (charge ? "+" : "")) : "");
+        return BatteryLabels.getText(status, charge);
+    }
+
+    /**
+     * Battery levels as in the beacon: 0-10, or DISCONNECTED_STATUS
+     */
+    public int getLeftLevel() {
+        return leftStatus;
+    }
+
+    public int getRightLevel() {
+        return rightStatus;
+    }
+
+    public int getCaseLevel() {
+        return caseStatus;
+    }
+
+    public boolean isLeftCharging() {
+        return chargeL;
+    }
+
+    public boolean isRightCharging() {
+        return chargeR;
+    }
+
+    public boolean isCaseCharging() {
+        return chargeCase;
+    }
+
+    /**
+     * Model as in the beacon (byte 3)
+     */
+    public int getModelId() {
+        return (int) (packed >>> PACKED_MODEL_SHIFT) & 0xFF;
+    }
+
+    public PodsModel getModel() {
+        return model;
     }
 
     public boolean isAllDisconnected() {
@@ -113,16 +209,21 @@ public class PodsStatus {
         return caseStatus <= MAX_CONNECTED_STATUS;
     }
 
-    public boolean isAirpods() {
-        return model.equals(MODEL_AIRPODS_NORMAL);
+    public long getTimestamp() {
+        return timestamp;
     }
 
-    public boolean isAirpodsPro() {
-        return model.equals(MODEL_AIRPODS_PRO);
+    /**
+     * True if other would be displayed the same way as this status (timestamp and device are not compared)
+     */
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof PodsStatus && packed == ((PodsStatus) other).packed;
     }
 
-    public long getTimestamp() {
-        return timestamp;
+    @Override
+    public int hashCode() {
+        return (int) (packed ^ (packed >>> 32));
     }
 
 }
@@ -1,18 +1,20 @@
 package com.dosse.airpods;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
 import android.os.SystemClock;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static com.dosse.airpods.Logger.debug;
 import static com.dosse.airpods.Logger.error;
+import static com.dosse.airpods.Logger.event;
+import static com.dosse.airpods.NotificationBuilder.TIMEOUT_CONNECTED;
 
 public abstract class PodsStatusScanCallback extends ScanCallback {
 
@@ -21,19 +23,117 @@ public abstract class PodsStatusScanCallback extends ScanCallback {
     public static final int AIRPOD_MANUFACTURER = 76;
     public static final int AIRPOD_DATA_LENGTH = 27;
     public static final int MIN_RSSI = -60;
+    public static final int RECENT_BEACONS_MAX_ADDRESSES = 32;
+    public static final int RECENT_BEACONS_MAX_PER_ADDRESS = 64;
+    public static final long BATCH_REPORT_DELAY_MS = 5000;
 
-    private List<ScanResult> recentBeacons = new ArrayList<>();
+    private final BeaconWindow<BluetoothDevice> recentBeacons = new BeaconWindow<>(RECENT_BEACONS_MAX_ADDRESSES,
+            RECENT_BEACONS_MAX_PER_ADDRESS, AIRPOD_DATA_LENGTH, RECENT_BEACONS_MAX_T_NS);
+    private final BeaconSelector selector = new BeaconSelector(RECENT_BEACONS_MAX_ADDRESSES, MIN_RSSI,
+            BeaconSelector.DEFAULT_DWELL_NS, RECENT_BEACONS_MAX_T_NS);
+    private final byte[] bestData = new byte[AIRPOD_DATA_LENGTH];
+    private final StatusCoalescer coalescer = new StatusCoalescer();
+    private volatile DeviceTable devices = null;
+    private volatile BeaconTrace.Writer trace = null;
+    private volatile ScanFilterLearner learner = null;
+    private BeaconRing ring = null;
+    private Handler handler = null;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private long receivedNs = 0; //see getReceivedNs
+    private long replayOffsetMs = Long.MIN_VALUE; //wall clock minus trace clock, set by the first replayed beacon
 
+    /**
+     * Called when a beacon with a different status is received
+     */
     public abstract void onStatus(PodsStatus status);
 
-    public static ScanSettings getScanSettings(boolean save) {
+    /**
+     * Called when a beacon with the same status as the last one is received, the timestamp of status has already been refreshed
+     *
+     * @param wasStale true if the status was older than TIMEOUT_CONNECTED before this beacon
+     */
+    public void onStatusRefreshed(PodsStatus status, boolean wasStale) {
+    }
+
+    /**
+     * Called when the status of a device in the DeviceTable changes, or becomes fresh again. Only used if setDeviceTable was called.
+     */
+    public void onDeviceStatus(DeviceTable devices, int slot) {
+    }
+
+    /**
+     * Called when the ScanFilterLearner finished discovering, the scan should be restarted with its new filters
+     */
+    public void onFiltersLearned() {
+    }
+
+    /**
+     * True if the user's AirPods are connected. The beacons are only passed to the ScanFilterLearner while they are,
+     * so that it doesn't learn the signature of somebody else's AirPods.
+     */
+    public boolean isConnected() {
+        return false;
+    }
+
+    /**
+     * When the beacon that is being passed to onStatus, onStatusRefreshed or onDeviceStatus was received by onScanResult
+     * or onBatchScanResults, in the SystemClock.elapsedRealtimeNanos timebase, so that the latency up to the notification
+     * can be measured (Metrics.NOTIFICATION_LATENCY). 0 if metrics are disabled. Only valid during those calls.
+     */
+    public long getReceivedNs() {
+        return receivedNs;
+    }
+
+    private static long now() {
+        return Metrics.isEnabled() ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    /**
+     * Pass the decoded beacons to learner, and count the beacons received with its filters
+     */
+    public void setFilterLearner(ScanFilterLearner learner) {
+        this.learner = learner;
+    }
+
+    /**
+     * Also keep track of the status of every pair of AirPods nearby, not just the strongest one
+     */
+    public void setDeviceTable(DeviceTable devices) {
+        this.devices = devices;
+    }
+
+    /**
+     * Process the beacons on the thread of this handler instead of the one that delivers the scan results.
+     * The scan callback only copies the beacons that look like AirPods in a BeaconRing, and the handler drains it in batches.
+     * Must be called before the scan is started.
+     */
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+        ring = handler == null ? null : new BeaconRing(BeaconRing.DEFAULT_CAPACITY, AIRPOD_DATA_LENGTH);
+    }
+
+    public static ScanSettings getScanSettings(boolean save, boolean batching) {
         if(save) {
-            return new ScanSettings.Builder().setScanMode(0).setReportDelay(0).build();
+            return getScanSettings(ScanSettings.SCAN_MODE_LOW_POWER, batching);
         }else{
-            return new ScanSettings.Builder().setScanMode(2).setReportDelay(2).build();
+            return getScanSettings(ScanSettings.SCAN_MODE_LOW_LATENCY, batching);
         }
     }
 
+    /**
+     * If the controller can batch scan results (see BluetoothAdapter.isOffloadedScanBatchingSupported),
+     * beacons received in the slower scan modes are kept in the controller and delivered every BATCH_REPORT_DELAY_MS
+     * to onBatchScanResults, so the phone can sleep in the meantime.
+     * In low latency mode, or without batching, every beacon is delivered immediately to onScanResult.
+     * Opportunistic mode is never batched: a scan with a report delay is run by the stack as a batch scan of its own
+     * on the controller, so it would use the radio instead of only getting the results of the other apps' scans.
+     */
+    public static ScanSettings getScanSettings(int scanMode, boolean batching) {
+        long reportDelay = batching && scanMode != ScanSettings.SCAN_MODE_LOW_LATENCY
+                && scanMode != ScanSettings.SCAN_MODE_OPPORTUNISTIC ? BATCH_REPORT_DELAY_MS : 0;
+        return new ScanSettings.Builder().setScanMode(scanMode).setReportDelay(reportDelay).build();
+    }
+
     public static List<ScanFilter> getScanFilters() {
         byte[] manufacturerData = new byte[AIRPOD_DATA_LENGTH];
         byte[] manufacturerDataMask = new byte[AIRPOD_DATA_LENGTH];
@@ -49,12 +149,34 @@ public abstract class PodsStatusScanCallback extends ScanCallback {
         return Collections.singletonList(builder.build());
     }
 
+    /**
+     * All the beacons in the batch are added to recentBeacons, then only the status of the selected one is decoded
+     */
     @Override
     public void onBatchScanResults(List<ScanResult> scanResults) {
-        for (ScanResult result : scanResults) {
-            onScanResult(-1, result);
+        try {
+            long received = now();
+            if(ring != null) {
+                for (int i = 0; i < scanResults.size(); i++) {
+                    enqueue(scanResults.get(i), received);
+                }
+                scheduleDrain();
+                return;
+            }
+            receivedNs = received;
+            int best = -1;
+            for (int i = 0; i < scanResults.size(); i++) {
+                int b = addBeacon(scanResults.get(i));
+                if(b >= 0) {
+                    best = b;
+                }
+            }
+            if(best >= 0) {
+                publish(best, System.currentTimeMillis());
+            }
+        } catch (Throwable t) {
+            error(t);
         }
-        super.onBatchScanResults(scanResults);
     }
 
     /**
@@ -69,51 +191,231 @@ public abstract class PodsStatusScanCallback extends ScanCallback {
      * As a result, we have no reliable way to make sure that the beacon comes from YOUR airpods
      * and not the guy sitting next to you on the bus.
      * What we did to workaround this issue is this:
-     * - When a beacon arrives that looks like a pair of AirPods,
-     *     look at the other beacons received in the last 10 seconds and get the strongest one
-     * - If the strongest beacon's fake address is the same as this, use this beacon; otherwise use the strongest beacon
-     * - Filter for signals stronger than -60db
-     * - Decode...
+     * - When a beacon arrives that looks like a pair of AirPods, update the smoothed RSSI of its fake address
+     * - Stick to the address we're listening to, unless another one has been clearly stronger for a while (see BeaconSelector)
+     * - Filter for signals stronger than -60db, with some hysteresis
+     * - Decode the latest beacon of that address...
      *
      */
 
     @Override
     public void onScanResult(int callbackType, ScanResult result) {
         try {
-            if (!isAirpodResult(result)) {
+            long received = now();
+            if(ring != null) {
+                enqueue(result, received);
+                scheduleDrain();
                 return;
             }
-            result.getDevice().getAddress();
-            debug(result.getRssi() + "db");
-            debug(decodeResult(result));
-            result = getBestResult(result);
-            if(result == null || result.getRssi() < MIN_RSSI) {
-                return;
+            receivedNs = received;
+            int best = addBeacon(result);
+            if(best >= 0) {
+                publish(best, System.currentTimeMillis());
             }
-            BluetoothDeviceInfo device = new BluetoothDeviceInfo(result.getDevice());
-            PodsStatus status = new PodsStatus(decodeResult(result), device);
-            onStatus(status);
         } catch (Throwable t) {
             error(t);
         }
     }
 
-    private ScanResult getBestResult(ScanResult result) {
-        recentBeacons.add(result);
-        ScanResult strongestBeacon = null;
-        for(int i = 0; i < recentBeacons.size(); i++){
-            if(SystemClock.elapsedRealtimeNanos() - recentBeacons.get(i).getTimestampNanos() > RECENT_BEACONS_MAX_T_NS){
-                recentBeacons.remove(i--);
-                continue;
+    /**
+     * Adds the beacon to recentBeacons if it looks like a pair of AirPods.
+     * Returns the slot of the beacon to decode, or -1 if there's nothing to decode (not AirPods, or signal too weak)
+     */
+    private int addBeacon(ScanResult result) {
+        Metrics.increment(Metrics.BEACONS_RECEIVED);
+        if(learner != null) {
+            Metrics.increment(learner.isUsingLearnedFilters() ? Metrics.BEACONS_LEARNED_FILTER : Metrics.BEACONS_BROAD_FILTER);
+        }
+        if (!isAirpodResult(result)) {
+            Metrics.increment(Metrics.BEACONS_NOT_AIRPODS);
+            return -1;
+        }
+        BluetoothDevice device = result.getDevice();
+        long address = BeaconWindow.parseAddress(device.getAddress());
+        byte[] data = getManufacturerData(result);
+        BeaconTrace.Writer writer = trace;
+        if(writer != null) {
+            writer.write(result.getTimestampNanos(), address, result.getRssi(), data);
+        }
+        return addBeacon(address, result.getTimestampNanos(), result.getRssi(), data, device, SystemClock.elapsedRealtimeNanos(),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Same as addBeacon, but the beacon is only copied to the ring, see setHandler
+     */
+    private void enqueue(ScanResult result, long received) {
+        Metrics.increment(Metrics.BEACONS_RECEIVED);
+        ScanFilterLearner l = learner;
+        if(l != null) {
+            Metrics.increment(l.isUsingLearnedFilters() ? Metrics.BEACONS_LEARNED_FILTER : Metrics.BEACONS_BROAD_FILTER);
+        }
+        if (!isAirpodResult(result)) {
+            Metrics.increment(Metrics.BEACONS_NOT_AIRPODS);
+            return;
+        }
+        BluetoothDevice device = result.getDevice();
+        ring.offer(result.getTimestampNanos(), BeaconWindow.parseAddress(device.getAddress()), result.getRssi(),
+                getManufacturerData(result), device, received);
+    }
+
+    private void scheduleDrain() {
+        if(drainScheduled.compareAndSet(false, true)) {
+            handler.post(drain);
+        }
+    }
+
+    /**
+     * Processes everything in the ring, then decodes the status of the selected beacon, like onBatchScanResults
+     */
+    private final Runnable drain = () -> {
+        drainScheduled.set(false);
+        try {
+            int best = -1;
+            long bestReceived = 0;
+            while (ring.poll()) {
+                BeaconTrace.Writer writer = trace;
+                if(writer != null) {
+                    writer.write(ring.getTimestamp(), ring.getAddress(), ring.getRssi(), ring.getData());
+                }
+                receivedNs = ring.getReceivedNs();
+                int b = addBeacon(ring.getAddress(), ring.getTimestamp(), ring.getRssi(), ring.getData(),
+                        (BluetoothDevice) ring.getTag(), SystemClock.elapsedRealtimeNanos(), System.currentTimeMillis());
+                if(b >= 0) {
+                    best = b;
+                    bestReceived = receivedNs;
+                }
+            }
+            if(best >= 0) {
+                receivedNs = bestReceived;
+                publish(best, System.currentTimeMillis());
             }
-            if(strongestBeacon == null || strongestBeacon.getRssi() < recentBeacons.get(i).getRssi()) {
-                strongestBeacon = recentBeacons.get(i);
+        } catch (Throwable t) {
+            error(t);
+        }
+    };
+
+    /**
+     * Same as above, for a beacon that has already been checked to come from AirPods.
+     * device can be null if the beacon doesn't come from the scanner (see replay).
+     *
+     * @param nowNs current time, in the SystemClock.elapsedRealtimeNanos timebase
+     * @param nowMs current time, in the System.currentTimeMillis timebase (used for the timestamps of the statuses)
+     */
+    private int addBeacon(long address, long timestampNs, int rssi, byte[] data, BluetoothDevice device, long nowNs, long nowMs) {
+        if(Logger.isEventsEnabled()) {
+            event(Logger.EVENT_BEACON, address, rssi, PodsStatus.pack(data));
+        }
+        recentBeacons.add(address, timestampNs, rssi, data, device, nowNs);
+        int slot = recentBeacons.getLastSlot();
+        if(slot < 0) {
+            Metrics.increment(Metrics.BEACONS_TOO_WEAK);
+            return -1;
+        }
+        int best = selector.update(slot, address, rssi, timestampNs);
+        if(devices != null && selector.getSmoothedRssi(slot) >= MIN_RSSI) {
+            trackDevice(address, data, nowNs, nowMs);
+        }
+        if(best < 0) {
+            Metrics.increment(Metrics.BEACONS_TOO_WEAK);
+            return -1;
+        }
+        if(recentBeacons.getAddress(best) != address) {
+            Metrics.increment(Metrics.BEACONS_SUPERSEDED);
+        }
+        return best;
+    }
+
+    /**
+     * Feeds a recorded beacon (see BeaconTrace) through the same steps as a beacon coming from the scanner.
+     * The timestamp of the beacon is used as the current time everywhere (beacon window, selector, DeviceTable, status timestamps),
+     * so the result only depends on the trace. Status timestamps are moved to the wall clock by a fixed offset, taken at the first
+     * replayed beacon (see resetReplayClock), so that they look as fresh as they were when they were recorded.
+     */
+    public void replay(long timestampNs, long address, int rssi, byte[] data) {
+        receivedNs = now();
+        Metrics.increment(Metrics.BEACONS_RECEIVED);
+        if(!isDataValid(data)) {
+            Metrics.increment(Metrics.BEACONS_NOT_AIRPODS);
+            return;
+        }
+        long traceMs = timestampNs / 1000000;
+        if(replayOffsetMs == Long.MIN_VALUE) {
+            replayOffsetMs = System.currentTimeMillis() - traceMs;
+        }
+        int best = addBeacon(address, timestampNs, rssi, data, null, timestampNs, traceMs + replayOffsetMs);
+        if(best >= 0) {
+            publish(best, traceMs + replayOffsetMs);
+        }
+    }
+
+    /**
+     * The next replayed beacon will take the offset between the trace and the wall clock again, call it before replaying another trace
+     */
+    public void resetReplayClock() {
+        replayOffsetMs = Long.MIN_VALUE;
+    }
+
+    /**
+     * Start (writer not null) or stop (null) recording the beacons that look like AirPods. The writer is not closed when it's replaced.
+     */
+    public void setTrace(BeaconTrace.Writer writer) {
+        trace = writer;
+    }
+
+    /**
+     * Decodes the latest beacon of this slot, and passes it to onStatus if it's different from the previous one
+     *
+     * @param now current time, in the System.currentTimeMillis timebase
+     */
+    private void publish(int best, long now) {
+        long start = Metrics.isEnabled() ? System.nanoTime() : 0;
+        recentBeacons.copyLastData(best, bestData);
+        if(learner != null && isConnected() && learner.observe(bestData)) {
+            onFiltersLearned();
+        }
+        long previous = coalescer.refresh(bestData, now);
+        if(previous >= 0) {
+            if(start != 0) {
+                Metrics.recordNanos(Metrics.DECODE_TIME, System.nanoTime() - start);
             }
+            Metrics.increment(Metrics.STATUS_REFRESHED);
+            onStatusRefreshed(coalescer.getLast(), now - previous >= TIMEOUT_CONNECTED);
+            return;
+        }
+        //the status shown is the one of the connected AirPods
+        PodsStatus status = new PodsStatus(bestData, BluetoothDeviceInfo.getConnected());
+        status.refresh(now);
+        coalescer.accept(status);
+        if(start != 0) {
+            Metrics.recordNanos(Metrics.DECODE_TIME, System.nanoTime() - start);
         }
-        if(strongestBeacon != null && Objects.equals(strongestBeacon.getDevice().getAddress(), result.getDevice().getAddress())) {
-            strongestBeacon = result;
+        Metrics.increment(Metrics.STATUS_CHANGED);
+        onStatus(status);
+    }
+
+    /**
+     * Updates the status of the device that sent this beacon in the DeviceTable
+     */
+    private void trackDevice(long address, byte[] data, long nowNs, long nowMs) {
+        int slot = devices.getSlot(address, data[3] & 0xFF, nowNs / 1000000);
+        StatusCoalescer deviceCoalescer = devices.getCoalescer(slot);
+        long previous = deviceCoalescer.refresh(data, nowMs);
+        if(previous >= 0) {
+            if(nowMs - previous >= TIMEOUT_CONNECTED) {
+                onDeviceStatus(devices, slot);
+            }
+            return;
         }
-        return strongestBeacon;
+        //there's no telling which of these devices is the bonded one, if any
+        PodsStatus status = new PodsStatus(data, null);
+        status.refresh(nowMs);
+        deviceCoalescer.accept(status);
+        onDeviceStatus(devices, slot);
+    }
+
+    public StatusCoalescer getCoalescer() {
+        return coalescer;
     }
 
     private static boolean isAirpodResult(ScanResult result) {
@@ -125,25 +427,13 @@ public abstract class PodsStatusScanCallback extends ScanCallback {
         return data != null && data.length == AIRPOD_DATA_LENGTH;
     }
 
-    private static String decodeResult(ScanResult result) {
+    private static byte[] getManufacturerData(ScanResult result) {
         if(result != null && result.getScanRecord() != null) {
             byte[] data = result.getScanRecord().getManufacturerSpecificData(AIRPOD_MANUFACTURER);
             if(isDataValid(data)) {
-                return decodeHex(data);
+                return data;
             }
-        };
-        return null;
-    }
-
-    private static final char[] hexCharset = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-
-    private static String decodeHex(byte[] bArr) {
-        char[] ret = new char[bArr.length * 2];
-        for (int i = 0; i < bArr.length; i++) {
-            int b = bArr[i] & 0xFF;
-            ret[i*2] = hexCharset[b >>> 4];
-            ret[i*2+1] = hexCharset[b & 0x0F];
         }
-        return new String(ret);
+        return null;
     }
 }
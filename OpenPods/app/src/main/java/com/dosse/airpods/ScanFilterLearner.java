@@ -0,0 +1,182 @@
+package com.dosse.airpods;
+
+import android.bluetooth.le.ScanFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.dosse.airpods.PodsStatusScanCallback.AIRPOD_DATA_LENGTH;
+import static com.dosse.airpods.PodsStatusScanCallback.AIRPOD_MANUFACTURER;
+
+/**
+ * Learns which AirPods belong to the user, so that the BT controller can drop the beacons of everybody else's AirPods
+ * instead of waking up the phone for each of them.
+ *
+ * Some bytes of the beacon never change for a given pair of AirPods: the model (bytes 3 and 4) and the colour (byte 9).
+ * Discovery starts when AirPods are connected (or when no pair is known yet), and the scanner uses the broad filter until it's over.
+ * The beacons we decode are passed to observe only while the AirPods are connected (see PodsStatusScanCallback.isConnected),
+ * and when the same signature is seen CONFIRMATIONS times in a row, it is remembered. Once a pair is known, the scanner only
+ * uses filters that match the known signatures.
+ * Up to MAX_SIGNATURES pairs are remembered, the least recently confirmed one is forgotten first.
+ */
+public class ScanFilterLearner {
+
+    public static final int MAX_SIGNATURES = 4;
+    public static final int CONFIRMATIONS = 5;
+
+    private static final int[] STABLE_BYTES = {3, 4, 9};
+
+    private final int[] signatures = new int[MAX_SIGNATURES]; //most recently confirmed first
+    private int count = 0;
+    private volatile boolean discovering;
+    private volatile boolean usingLearnedFilters = false;
+    private int candidate = -1;
+    private int confirmations = 0;
+
+    /**
+     * @param saved signatures returned by save, or an empty string
+     */
+    public ScanFilterLearner(String saved) {
+        for (String s : saved.split(",")) {
+            if (count < MAX_SIGNATURES && !s.isEmpty()) {
+                try {
+                    signatures[count++] = Integer.parseInt(s, 16);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        discovering = count == 0;
+    }
+
+    /**
+     * Signatures to be passed to the constructor next time
+     */
+    public synchronized String save() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(Integer.toHexString(signatures[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * AirPods were connected: use the broad filter until we're sure which beacons are theirs
+     *
+     * @return true if the filters changed and the scan should be restarted
+     */
+    public synchronized boolean startDiscovery() {
+        if (discovering) {
+            return false;
+        }
+        discovering = true;
+        candidate = -1;
+        confirmations = 0;
+        return usingLearnedFilters;
+    }
+
+    /**
+     * Called with every decoded beacon while the AirPods are connected
+     *
+     * @return true if discovery is over and the scan should be restarted with the learned filters
+     */
+    public boolean observe(byte[] data) {
+        if (!discovering) {
+            return false;
+        }
+        synchronized (this) {
+            if (!discovering) {
+                return false;
+            }
+            int signature = signature(data);
+            if (signature == candidate) {
+                confirmations++;
+            } else {
+                candidate = signature;
+                confirmations = 1;
+            }
+            if (confirmations < CONFIRMATIONS) {
+                return false;
+            }
+            remember(signature);
+            discovering = false;
+            Metrics.increment(Metrics.FILTERS_LEARNED);
+            return true;
+        }
+    }
+
+    /**
+     * The filters the scanner should use right now
+     */
+    public synchronized List<ScanFilter> getScanFilters() {
+        usingLearnedFilters = !discovering && count > 0;
+        if (!usingLearnedFilters) {
+            return PodsStatusScanCallback.getScanFilters();
+        }
+        List<ScanFilter> filters = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] manufacturerData = new byte[AIRPOD_DATA_LENGTH];
+            byte[] manufacturerDataMask = new byte[AIRPOD_DATA_LENGTH];
+            manufacturerData[0] = 7;
+            manufacturerData[1] = 25;
+            manufacturerDataMask[0] = -1;
+            manufacturerDataMask[1] = -1;
+            for (int b = 0; b < STABLE_BYTES.length; b++) {
+                manufacturerData[STABLE_BYTES[b]] = (byte) (signatures[i] >>> (8 * (STABLE_BYTES.length - 1 - b)));
+                manufacturerDataMask[STABLE_BYTES[b]] = -1;
+            }
+            filters.add(new ScanFilter.Builder().setManufacturerData(AIRPOD_MANUFACTURER, manufacturerData, manufacturerDataMask).build());
+        }
+        return filters;
+    }
+
+    /**
+     * True if the filters returned by the last call to getScanFilters only match the learned signatures
+     */
+    public boolean isUsingLearnedFilters() {
+        return usingLearnedFilters;
+    }
+
+    public boolean isDiscovering() {
+        return discovering;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Forget all the signatures and start discovering again
+     */
+    public synchronized void clear() {
+        count = 0;
+        discovering = true;
+        candidate = -1;
+        confirmations = 0;
+    }
+
+    private void remember(int signature) {
+        int i = 0;
+        while (i < count && signatures[i] != signature) {
+            i++;
+        }
+        if (i == count) {
+            if (count < MAX_SIGNATURES) {
+                count++;
+            }
+            i = count - 1;
+        }
+        System.arraycopy(signatures, 0, signatures, 1, i);
+        signatures[0] = signature;
+    }
+
+    private static int signature(byte[] data) {
+        int signature = 0;
+        for (int b : STABLE_BYTES) {
+            signature = (signature << 8) | (data[b] & 0xFF);
+        }
+        return signature;
+    }
+}
@@ -0,0 +1,175 @@
+package com.dosse.airpods;
+
+/**
+ * Decides which scan mode the BLE scanner should use, so that we don't scan in low latency mode forever.
+ *
+ * - When something interesting happens (AirPods connected, screen turned on, status changed, beacons stopped arriving)
+ *     the scanner is switched to low latency mode
+ * - When the status has been stable for balancedAfterMs, the scanner is switched to balanced mode
+ * - When the status has been stable for lowPowerAfterMs, the scanner is switched to low power mode
+ * - If no beacon is received for staleAfterMs while not in low latency mode, we assume we're missing something and switch back up
+ *
+ * The scanner and the clock are interfaces so that this class doesn't depend on android and can be tested on the JVM.
+ * Scanner.schedule is used to ask for a call to onTimer after some time.
+ * Time spent in each mode is accounted and can be read with getTimeInMode.
+ *
+ * This class is not thread safe, all methods must be called from the same thread.
+ */
+public class ScanScheduler {
+
+    //same values as ScanSettings.SCAN_MODE_*
+    public static final int MODE_OFF = -2;
+    public static final int MODE_LOW_POWER = 0;
+    public static final int MODE_BALANCED = 1;
+    public static final int MODE_LOW_LATENCY = 2;
+
+    public static final long DEFAULT_BALANCED_AFTER_MS = 30000;
+    public static final long DEFAULT_LOW_POWER_AFTER_MS = 120000;
+    public static final long DEFAULT_STALE_AFTER_MS = 15000;
+
+    public interface Clock {
+        long now();
+    }
+
+    public interface Scanner {
+        /**
+         * Start scanning in the given mode, or restart the scan if it's already running in another mode
+         */
+        void startScan(int mode);
+
+        /**
+         * Call onTimer after delayMs, replacing any previously scheduled call. A negative delay cancels it.
+         */
+        void schedule(long delayMs);
+    }
+
+    private final Scanner scanner;
+    private final Clock clock;
+    private final long balancedAfterMs;
+    private final long lowPowerAfterMs;
+    private final long staleAfterMs;
+
+    private int mode = MODE_OFF;
+    private long modeSince;
+    private long lastChange;
+    private long lastBeacon = -1;
+    private boolean staleReported = false;
+    private final long[] timeInMode = new long[MODE_LOW_LATENCY + 1];
+
+    public ScanScheduler(Scanner scanner, Clock clock) {
+        this(scanner, clock, DEFAULT_BALANCED_AFTER_MS, DEFAULT_LOW_POWER_AFTER_MS, DEFAULT_STALE_AFTER_MS);
+    }
+
+    public ScanScheduler(Scanner scanner, Clock clock, long balancedAfterMs, long lowPowerAfterMs, long staleAfterMs) {
+        this.scanner = scanner;
+        this.clock = clock;
+        this.balancedAfterMs = balancedAfterMs;
+        this.lowPowerAfterMs = lowPowerAfterMs;
+        this.staleAfterMs = staleAfterMs;
+    }
+
+    /**
+     * The scanner was started, begin in low latency mode
+     */
+    public void start() {
+        boost();
+    }
+
+    /**
+     * AirPods connected or screen turned on: we want a status as soon as possible
+     */
+    public void onWakeUp() {
+        if (mode == MODE_OFF) {
+            return;
+        }
+        boost();
+    }
+
+    /**
+     * A beacon was decoded
+     *
+     * @param changed true if the status is different from the previous one
+     */
+    public void onStatus(boolean changed) {
+        if (mode == MODE_OFF) {
+            return;
+        }
+        lastBeacon = clock.now();
+        staleReported = false;
+        if (changed) {
+            boost();
+        }
+    }
+
+    public void onTimer() {
+        if (mode == MODE_OFF) {
+            return;
+        }
+        long now = clock.now();
+        if (!staleReported && lastBeacon >= 0 && mode != MODE_LOW_LATENCY && now - lastBeacon >= staleAfterMs) {
+            staleReported = true;
+            boost();
+            return;
+        }
+        long stableFor = now - lastChange;
+        setMode(stableFor >= lowPowerAfterMs ? MODE_LOW_POWER : stableFor >= balancedAfterMs ? MODE_BALANCED : MODE_LOW_LATENCY, now);
+        scheduleNext(now);
+    }
+
+    public void stop() {
+        setMode(MODE_OFF, clock.now());
+        lastBeacon = -1;
+        staleReported = false;
+        scanner.schedule(-1);
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Total time spent scanning in the given mode (MODE_LOW_POWER, MODE_BALANCED or MODE_LOW_LATENCY), in the Clock's unit
+     */
+    public long getTimeInMode(int mode) {
+        long ret = timeInMode[mode];
+        if (mode == this.mode) {
+            ret += clock.now() - modeSince;
+        }
+        return ret;
+    }
+
+    private void boost() {
+        long now = clock.now();
+        lastChange = now;
+        setMode(MODE_LOW_LATENCY, now);
+        scheduleNext(now);
+    }
+
+    private void scheduleNext(long now) {
+        long next = -1;
+        if (mode == MODE_LOW_LATENCY) {
+            next = lastChange + balancedAfterMs;
+        } else if (mode == MODE_BALANCED) {
+            next = lastChange + lowPowerAfterMs;
+        }
+        if (!staleReported && lastBeacon >= 0 && mode != MODE_LOW_LATENCY) {
+            long stale = lastBeacon + staleAfterMs;
+            next = next < 0 ? stale : Math.min(next, stale);
+        }
+        scanner.schedule(next < 0 ? -1 : Math.max(0, next - now));
+    }
+
+    private void setMode(int newMode, long now) {
+        if (newMode == mode) {
+            return;
+        }
+        if (mode != MODE_OFF) {
+            timeInMode[mode] += now - modeSince;
+        }
+        mode = newMode;
+        modeSince = now;
+        if (newMode != MODE_OFF) {
+            scanner.startScan(newMode);
+        }
+    }
+}
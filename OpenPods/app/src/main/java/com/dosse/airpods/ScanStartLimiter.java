@@ -0,0 +1,37 @@
+package com.dosse.airpods;
+
+/**
+ * Android refuses to start a BLE scan if the app already started MAX_STARTS scans in the last 30 seconds, and the scan
+ * silently returns nothing until the app stops asking. Mode changes, new filters and wake ups all restart the scan,
+ * so every start goes through here, and a start that would be refused is delayed instead.
+ *
+ * This class is not thread safe, all methods must be called from the same thread.
+ */
+public class ScanStartLimiter {
+
+    public static final int MAX_STARTS = 5;
+    public static final long WINDOW_MS = 30000 + 1000; //a second of margin, our clock and the bluetooth service's aren't the same
+
+    private final long[] starts = new long[MAX_STARTS]; //ring of the last start times, starts[next] is the oldest when full
+    private int next = 0;
+    private int count = 0;
+
+    /**
+     * Counts a start at time now (in ms) if it's allowed
+     *
+     * @return 0 if the scan can be started now, otherwise how many ms to wait before trying again
+     */
+    public long tryStart(long now) {
+        if (count == MAX_STARTS) {
+            long wait = starts[next] + WINDOW_MS - now;
+            if (wait > 0) {
+                return wait;
+            }
+        } else {
+            count++;
+        }
+        starts[next] = now;
+        next = (next + 1) % MAX_STARTS;
+        return 0;
+    }
+}
@@ -0,0 +1,65 @@
+package com.dosse.airpods;
+
+/**
+ * Snapshot of what PodsService knows: the last status, whether AirPods are connected and whether location is on.
+ *
+ * Every change creates a new snapshot with a higher generation, see ServiceStateHolder.
+ * Since all fields are final, a snapshot read from any thread is always complete and consistent.
+ *
+ * The snapshot itself never changes, but the timestamp of its status does: when a beacon repeats the same status,
+ * StatusCoalescer refreshes the timestamp in place instead of publishing a new snapshot. The timestamp is volatile and only
+ * moves forward, so readers may see a status that is newer than the generation suggests, never an inconsistent one.
+ * This is only done while the status stays fresh: a beacon that makes a stale status fresh again changes what readers show,
+ * so it also publishes a new generation (see ServiceStateHolder.refreshStatus).
+ */
+public final class ServiceState {
+
+    public static final ServiceState INITIAL = new ServiceState(PodsStatus.DISCONNECTED, false, true, 0);
+
+    private final PodsStatus status;
+    private final boolean connected;
+    private final boolean locationEnabled;
+    private final long generation;
+
+    private ServiceState(PodsStatus status, boolean connected, boolean locationEnabled, long generation) {
+        this.status = status;
+        this.connected = connected;
+        this.locationEnabled = locationEnabled;
+        this.generation = generation;
+    }
+
+    ServiceState withStatus(PodsStatus status) {
+        return new ServiceState(status, connected, locationEnabled, generation + 1);
+    }
+
+    ServiceState withConnected(boolean connected) {
+        return new ServiceState(status, connected, locationEnabled, generation + 1);
+    }
+
+    ServiceState withLocationEnabled(boolean locationEnabled) {
+        return new ServiceState(status, connected, locationEnabled, generation + 1);
+    }
+
+    /**
+     * Same content as other, with the next generation of this snapshot
+     */
+    ServiceState with(ServiceState other) {
+        return new ServiceState(other.status, other.connected, other.locationEnabled, generation + 1);
+    }
+
+    public PodsStatus getStatus() {
+        return status;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isLocationEnabled() {
+        return locationEnabled;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+}
@@ -0,0 +1,138 @@
+package com.dosse.airpods;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the ServiceState from the scan callback, the broadcast receivers and the profile proxy listener
+ * to the NotificationThread (and anyone else who wants it).
+ *
+ * Updates are compare-and-set loops on an AtomicReference, so writers never block each other, and readers always see
+ * the latest complete snapshot. Updates that don't change anything don't create a new generation.
+ * Consumers without a Looper can wait for a newer generation with awaitNewer instead of polling;
+ * writers only touch the monitor when someone is actually waiting.
+ */
+public class ServiceStateHolder {
+
+    private final AtomicReference<ServiceState> state = new AtomicReference<>(ServiceState.INITIAL);
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Object monitor = new Object();
+
+    public ServiceState get() {
+        return state.get();
+    }
+
+    /**
+     * Returns the snapshot that was replaced
+     */
+    public ServiceState setStatus(PodsStatus status) {
+        while (true) {
+            ServiceState old = state.get();
+            if (old.getStatus() == status) {
+                return old;
+            }
+            if (state.compareAndSet(old, old.withStatus(status))) {
+                published();
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Publishes a new generation with the same status, if it's still the current one. Called when a beacon refreshed the
+     * timestamp of a status that was stale, so that readers see the change of freshness as a new snapshot.
+     * Returns the snapshot that was replaced
+     */
+    public ServiceState refreshStatus(PodsStatus status) {
+        while (true) {
+            ServiceState old = state.get();
+            if (old.getStatus() != status) {
+                return old;
+            }
+            if (state.compareAndSet(old, old.withStatus(status))) {
+                published();
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Returns the snapshot that was replaced
+     */
+    public ServiceState setConnected(boolean connected) {
+        while (true) {
+            ServiceState old = state.get();
+            if (old.isConnected() == connected) {
+                return old;
+            }
+            if (state.compareAndSet(old, old.withConnected(connected))) {
+                published();
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Returns the snapshot that was replaced
+     */
+    public ServiceState setLocationEnabled(boolean locationEnabled) {
+        while (true) {
+            ServiceState old = state.get();
+            if (old.isLocationEnabled() == locationEnabled) {
+                return old;
+            }
+            if (state.compareAndSet(old, old.withLocationEnabled(locationEnabled))) {
+                published();
+                return old;
+            }
+        }
+    }
+
+    /**
+     * Replaces everything with the content of a snapshot saved earlier (for instance by a previous instance of the service)
+     */
+    public void restore(ServiceState saved) {
+        while (true) {
+            ServiceState old = state.get();
+            if (state.compareAndSet(old, old.with(saved))) {
+                published();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits until a snapshot newer than generation is published, or until timeoutMs have passed.
+     * Returns the latest snapshot, which is not newer than generation if the wait timed out.
+     */
+    public ServiceState awaitNewer(long generation, long timeoutMs) throws InterruptedException {
+        ServiceState current = state.get();
+        if (current.getGeneration() > generation) {
+            return current;
+        }
+        waiters.incrementAndGet();
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            synchronized (monitor) {
+                while ((current = state.get()).getGeneration() <= generation) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    monitor.wait(remaining);
+                }
+            }
+            return current;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private void published() {
+        if (waiters.get() > 0) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.dosse.airpods;
 
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.view.MenuItem;
@@ -8,10 +9,15 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.preference.PreferenceManager;
 
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 public class SettingsActivity extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
 
+    public static final String PREFERENCES_NAME = "openpods";
+    private static final String MIGRATED = "migratedDefaultPreferences";
+
     @Override
     protected void onCreate (Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -22,13 +28,13 @@ public class SettingsActivity extends AppCompatActivity implements SharedPrefere
                 .commit();
         Objects.requireNonNull(getSupportActionBar()).setDisplayHomeAsUpEnabled(true);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+        SharedPreferences prefs = getPreferences(getApplicationContext());
         prefs.registerOnSharedPreferenceChangeListener(this);
     }
 
     @Override
     public void onSharedPreferenceChanged (SharedPreferences sharedPreferences, String key) {
-        if (key.equalsIgnoreCase("batterySaver"))
+        if (key.equalsIgnoreCase("batterySaver") || key.equalsIgnoreCase("multiDevice"))
             Starter.restartPodsService(getApplicationContext());
     }
 
@@ -41,4 +47,37 @@ public class SettingsActivity extends AppCompatActivity implements SharedPrefere
         return false;
     }
 
+    /**
+     * The preferences shared by the settings screen and PodsService.
+     * Older versions saved the settings in the default preferences, which PodsService never read: the first time this is
+     * called, their values are copied here (without overwriting anything already set) so that nobody loses their settings.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized SharedPreferences getPreferences (Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES_NAME, MODE_PRIVATE);
+        if (prefs.getBoolean(MIGRATED, false))
+            return prefs;
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, ?> e : PreferenceManager.getDefaultSharedPreferences(context).getAll().entrySet()) {
+            String key = e.getKey();
+            Object value = e.getValue();
+            if (prefs.contains(key))
+                continue;
+            if (value instanceof Boolean)
+                editor.putBoolean(key, (Boolean) value);
+            else if (value instanceof Integer)
+                editor.putInt(key, (Integer) value);
+            else if (value instanceof Long)
+                editor.putLong(key, (Long) value);
+            else if (value instanceof Float)
+                editor.putFloat(key, (Float) value);
+            else if (value instanceof String)
+                editor.putString(key, (String) value);
+            else if (value instanceof Set)
+                editor.putStringSet(key, (Set<String>) value);
+        }
+        editor.putBoolean(MIGRATED, true).apply();
+        return prefs;
+    }
+
 }
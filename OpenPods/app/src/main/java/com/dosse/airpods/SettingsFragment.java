@@ -27,6 +27,8 @@ public class SettingsFragment extends PreferenceFragmentCompat {
 
     @Override
     public void onCreatePreferences (Bundle savedInstanceState, String rootKey) {
+        SettingsActivity.getPreferences(requireContext()); //copies the old settings before they're shown
+        getPreferenceManager().setSharedPreferencesName(SettingsActivity.PREFERENCES_NAME); //same preferences read by PodsService
         setPreferencesFromResource(R.xml.preference_screen, rootKey);
         context = getContext();
 
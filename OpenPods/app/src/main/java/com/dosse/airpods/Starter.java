@@ -14,8 +14,11 @@ public class Starter extends BroadcastReceiver {
     @Override
     public void onReceive (Context context, Intent intent) {
         switch (Objects.requireNonNull(intent.getAction())) {
-            case Intent.ACTION_MY_PACKAGE_REPLACED:
             case Intent.ACTION_BOOT_COMPLETED:
+                StartupTrace.mark(StartupTrace.BOOT_RECEIVED);
+                startPodsService(context);
+                break;
+            case Intent.ACTION_MY_PACKAGE_REPLACED:
                 startPodsService(context);
                 break;
         }
@@ -25,13 +28,11 @@ public class Starter extends BroadcastReceiver {
         context.startService(new Intent(context, PodsService.class));
     }
 
+    /**
+     * Tells the service to reload its settings and restart the scanner, without stopping it. Doesn't block.
+     */
     public static void restartPodsService (Context context) {
-        context.stopService(new Intent(context, PodsService.class));
-        try {
-            Thread.sleep(500);
-        } catch (Throwable ignored) {
-        }
-        context.startService(new Intent(context, PodsService.class));
+        context.startService(new Intent(context, PodsService.class).setAction(PodsService.ACTION_RECONFIGURE));
     }
 
 }
@@ -0,0 +1,59 @@
+package com.dosse.airpods;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.dosse.airpods.Logger.event;
+
+/**
+ * Records when each phase of the startup happened for the first time in this process, in the elapsedRealtime timebase
+ * (milliseconds since boot), so that after a boot FIRST_NOTIFICATION is directly the time to first notification.
+ * The phases are logged as they happen and can be read with adb shell dumpsys activity service com.dosse.airpods/.PodsService
+ */
+public class StartupTrace {
+
+    public static final int BOOT_RECEIVED = 0;
+    public static final int SERVICE_CREATED = 1;
+    public static final int NOTIFICATION_THREAD_STARTED = 2;
+    public static final int PREFERENCES_LOADED = 3;
+    public static final int RECEIVERS_REGISTERED = 4;
+    public static final int SCANNER_STARTED = 5;
+    public static final int FIRST_NOTIFICATION = 6;
+    public static final int FIRST_STATUS = 7;
+    private static final String[] PHASE_NAMES = {
+            "boot received", "service created", "notification thread started", "preferences loaded",
+            "receivers registered", "scanner started", "first notification", "first status"
+    };
+
+    private static final AtomicLongArray marks = new AtomicLongArray(PHASE_NAMES.length);
+
+    public static void mark(int phase) {
+        if(marks.get(phase) != 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if(marks.compareAndSet(phase, 0, now)) {
+            event(Logger.EVENT_STARTUP, phase, now);
+        }
+    }
+
+    /**
+     * Time of the phase in milliseconds since boot, or 0 if it didn't happen yet
+     */
+    public static long get(int phase) {
+        return marks.get(phase);
+    }
+
+    public static void dump(PrintWriter writer) {
+        writer.println("Startup (ms since boot / since service created):");
+        long created = marks.get(SERVICE_CREATED);
+        for(int i = 0; i < PHASE_NAMES.length; i++) {
+            long t = marks.get(i);
+            if(t != 0) {
+                writer.println("  " + PHASE_NAMES[i] + ": " + t + (created != 0 ? " / " + (t - created) : ""));
+            }
+        }
+    }
+}
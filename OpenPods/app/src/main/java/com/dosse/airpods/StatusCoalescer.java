@@ -0,0 +1,62 @@
+package com.dosse.airpods;
+
+/**
+ * Sits between the scanner and PodsService.
+ *
+ * Most beacons carry exactly the same status as the previous one, only newer. For those we don't create a new PodsStatus,
+ * we just refresh the timestamp of the last one, so that everything downstream only has to deal with actual changes.
+ * The packed representation of the beacon (see PodsStatus.pack) is used for the comparison, so nothing is allocated.
+ *
+ * This class is not thread safe, it is meant to be used from the scan callback only. getLast can be called from any thread.
+ */
+public class StatusCoalescer {
+
+    private volatile PodsStatus last = null;
+    private long changes = 0;
+    private long duplicates = 0;
+
+    /**
+     * If data decodes to the same status as the last accepted one, refreshes its timestamp and returns the previous timestamp.
+     * Returns -1 if the status is different, in which case a new PodsStatus should be created and passed to accept.
+     */
+    public long refresh(byte[] data, long timestamp) {
+        PodsStatus status = last;
+        if (status == null || status.getPacked() != PodsStatus.pack(data)) {
+            return -1;
+        }
+        long previous = status.getTimestamp();
+        status.refresh(timestamp);
+        duplicates++;
+        return previous;
+    }
+
+    public void accept(PodsStatus status) {
+        last = status;
+        changes++;
+    }
+
+    /**
+     * Forget the last status, the next beacon will be considered a change
+     */
+    public void reset() {
+        last = null;
+    }
+
+    public PodsStatus getLast() {
+        return last;
+    }
+
+    /**
+     * Number of beacons that changed the status
+     */
+    public long getChanges() {
+        return changes;
+    }
+
+    /**
+     * Number of beacons that only refreshed the timestamp of the last status
+     */
+    public long getDuplicates() {
+        return duplicates;
+    }
+}
@@ -0,0 +1,194 @@
+package com.dosse.airpods;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Keeps the last known state in a tiny file, so that when the service is restarted (or the process is killed and
+ * brought back by START_STICKY) the notification can be shown immediately, instead of waiting for a beacon.
+ *
+ * The file contains MAGIC and VERSION (int each), connected and location (boolean each), the packed status and
+ * its timestamp (long each), the number of devices in the DeviceTable (int), then address, model, packed status
+ * and timestamp of each of them (long, int, long, long).
+ * Timestamps are kept as they are, so a status restored after more than TIMEOUT_CONNECTED is shown as stale.
+ *
+ * write only touches the file if something other than the timestamps changed since the last time, or if the saved timestamps
+ * fell more than TIMESTAMP_WRITE_INTERVAL_MS behind: most beacons only refresh the timestamp, and without those writes a status
+ * restored right after a restart would look older than it is. That's at most one timestamp-only write every TIMESTAMP_WRITE_INTERVAL_MS.
+ * The file is written to a temporary file first and then renamed, so it's never half written.
+ */
+public class StatusSnapshot {
+
+    public static final String FILE_NAME = "snapshot.bin";
+    public static final long MIN_WRITE_INTERVAL_MS = 5000;
+    public static final long TIMESTAMP_WRITE_INTERVAL_MS = NotificationBuilder.TIMEOUT_CONNECTED / 2;
+
+    private static final int MAGIC = 0x4F505353;
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    //what was written last, to skip writes that would change nothing but the timestamps
+    private boolean written = false;
+    private long writtenPacked;
+    private long writtenTimestamp;
+    private boolean writtenConnected;
+    private boolean writtenLocation;
+    private long[] writtenDevices = new long[0];
+    private long[] writtenDeviceTimestamps = new long[0];
+
+    //devices read from the file, waiting for restoreDevices
+    private long[] addresses = new long[0];
+    private int[] models = new int[0];
+    private PodsStatus[] statuses = new PodsStatus[0];
+
+    public StatusSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the file. Returns the saved state, or null if there's no valid file.
+     */
+    public ServiceState read() {
+        if(!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            boolean connected = in.readBoolean();
+            boolean location = in.readBoolean();
+            PodsStatus status = new PodsStatus(in.readLong(), in.readLong());
+            int count = in.readInt();
+            if(count < 0 || count > DeviceTable.DEFAULT_CAPACITY) {
+                return null;
+            }
+            addresses = new long[count];
+            models = new int[count];
+            statuses = new PodsStatus[count];
+            for(int i = 0; i < count; i++) {
+                addresses[i] = in.readLong();
+                models[i] = in.readInt();
+                statuses[i] = new PodsStatus(in.readLong(), in.readLong());
+            }
+            return ServiceState.INITIAL.withStatus(status).withConnected(connected).withLocationEnabled(location);
+        } catch (IOException e) {
+            Logger.error(e);
+            return null;
+        }
+    }
+
+    /**
+     * True if the file that was read contains devices, which means that the previous instance was showing one notification per device
+     */
+    public boolean hasDevices() {
+        return statuses.length > 0;
+    }
+
+    /**
+     * Puts the devices read from the file in the table
+     */
+    public void restoreDevices(DeviceTable devices, long now) {
+        for(int i = 0; i < statuses.length && i < devices.getCapacity(); i++) {
+            devices.getCoalescer(devices.getSlot(addresses[i], models[i], now)).accept(statuses[i]);
+        }
+        addresses = new long[0];
+        models = new int[0];
+        statuses = new PodsStatus[0];
+    }
+
+    /**
+     * Saves the state and the devices (can be null), unless nothing changed since the last time
+     * and the saved timestamps are less than TIMESTAMP_WRITE_INTERVAL_MS old
+     */
+    public void write(ServiceState state, DeviceTable devices) throws IOException {
+        write(state, devices, TIMESTAMP_WRITE_INTERVAL_MS);
+    }
+
+    /**
+     * Same as above, but saves the timestamps if they moved forward at all. Used when the service stops, since there won't be another write.
+     */
+    public void writeFinal(ServiceState state, DeviceTable devices) throws IOException {
+        write(state, devices, 1);
+    }
+
+    private void write(ServiceState state, DeviceTable devices, long maxTimestampLag) throws IOException {
+        int count = 0;
+        if(devices != null) {
+            for(int slot = 0; slot < devices.getCapacity(); slot++) {
+                if(devices.getStatus(slot) != null) {
+                    count++;
+                }
+            }
+        }
+        long[] deviceKeys = new long[count * 2];
+        long[] deviceTimestamps = new long[count];
+        PodsStatus[] deviceStatuses = new PodsStatus[count];
+        int[] slots = new int[count];
+        for(int slot = 0, i = 0; devices != null && slot < devices.getCapacity(); slot++) {
+            PodsStatus status = devices.getStatus(slot);
+            if(status != null) {
+                deviceKeys[i * 2] = devices.getAddress(slot);
+                deviceKeys[i * 2 + 1] = status.getPacked();
+                deviceStatuses[i] = status;
+                deviceTimestamps[i] = status.getTimestamp();
+                slots[i] = slot;
+                i++;
+            }
+        }
+        PodsStatus status = state.getStatus();
+        long timestamp = status.getTimestamp();
+        if(written && writtenPacked == status.getPacked() && writtenConnected == state.isConnected() &&
+                writtenLocation == state.isLocationEnabled() && java.util.Arrays.equals(writtenDevices, deviceKeys) &&
+                timestamp - writtenTimestamp < maxTimestampLag && !isLagging(deviceTimestamps, maxTimestampLag)) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeBoolean(state.isConnected());
+        out.writeBoolean(state.isLocationEnabled());
+        out.writeLong(status.getPacked());
+        out.writeLong(timestamp);
+        out.writeInt(count);
+        for(int i = 0; i < count; i++) {
+            out.writeLong(deviceKeys[i * 2]);
+            out.writeInt(devices.getModel(slots[i]));
+            out.writeLong(deviceStatuses[i].getPacked());
+            out.writeLong(deviceTimestamps[i]);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream f = new FileOutputStream(tmp)) {
+            bytes.writeTo(f);
+        }
+        if(!tmp.renameTo(file)) {
+            throw new IOException("Can't rename " + tmp);
+        }
+        written = true;
+        writtenPacked = status.getPacked();
+        writtenTimestamp = timestamp;
+        writtenConnected = state.isConnected();
+        writtenLocation = state.isLocationEnabled();
+        writtenDevices = deviceKeys;
+        writtenDeviceTimestamps = deviceTimestamps;
+    }
+
+    /**
+     * True if the timestamp of a device is at least maxLag newer than the one that was written. The devices must be the same as the written ones.
+     */
+    private boolean isLagging(long[] deviceTimestamps, long maxLag) {
+        for(int i = 0; i < deviceTimestamps.length; i++) {
+            if(deviceTimestamps[i] - writtenDeviceTimestamps[i] >= maxLag) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,166 @@
+package com.dosse.airpods;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds synthetic discharge and charge curves to a BatteryEstimator and checks the estimated time remaining
+ */
+public class BatteryEstimatorTest {
+
+    private static final long MINUTE = 60000;
+    private static final long START = 1600000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Discharges a pod linearly, one level every minutesPerLevel, and checks the estimate at every change once there are
+     * two points. With a straight line the fit is exact.
+     */
+    private static void linearDischarge(int minutesPerLevel) {
+        BatteryEstimator estimator = new BatteryEstimator();
+        for (int level = 10; level > 0; level--) {
+            long now = START + (10 - level) * minutesPerLevel * MINUTE;
+            estimator.update(BatteryEstimator.LEFT, now, level, false);
+            long minutes = estimator.getMinutes(BatteryEstimator.LEFT, now);
+            if (level == 10) {
+                assertEquals(-1, minutes);
+            } else {
+                assertEquals("level " + level, level * minutesPerLevel, minutes, 1);
+            }
+        }
+    }
+
+    @Test
+    public void linearDischargeIsExact() {
+        linearDischarge(1);
+        linearDischarge(12);
+        linearDischarge(45);
+    }
+
+    @Test
+    public void linearChargeEstimatesTimeToFull() {
+        BatteryEstimator estimator = new BatteryEstimator();
+        for (int level = 2; level <= 10; level++) {
+            long now = START + (level - 2) * 5 * MINUTE;
+            estimator.update(BatteryEstimator.CASE, now, level, true);
+            long minutes = estimator.getMinutes(BatteryEstimator.CASE, now);
+            if (level == 2 || level == 10) {
+                assertEquals("level " + level, -1, minutes);
+            } else {
+                assertEquals("level " + level, (10 - level) * 5, minutes, 1);
+            }
+        }
+    }
+
+    @Test
+    public void estimateCountsDownWithoutNewLevels() {
+        BatteryEstimator estimator = new BatteryEstimator();
+        estimator.update(BatteryEstimator.RIGHT, START, 8, false);
+        estimator.update(BatteryEstimator.RIGHT, START + 20 * MINUTE, 7, false);
+        assertEquals(140, estimator.getMinutes(BatteryEstimator.RIGHT, START + 20 * MINUTE), 1);
+        //the same level again changes nothing, the time remaining keeps going down with the clock
+        estimator.update(BatteryEstimator.RIGHT, START + 30 * MINUTE, 7, false);
+        assertEquals(130, estimator.getMinutes(BatteryEstimator.RIGHT, START + 30 * MINUTE), 1);
+        assertEquals(0, estimator.getMinutes(BatteryEstimator.RIGHT, START + 1000 * MINUTE));
+    }
+
+    @Test
+    public void drainSpeedingUpIsFollowedWithinTheWindow() {
+        //the last levels of a battery go faster: 20 minutes per level down to 8, then 5 minutes per level
+        BatteryEstimator estimator = new BatteryEstimator();
+        long now = START;
+        for (int level = 10; level >= 8; level--) {
+            estimator.update(BatteryEstimator.LEFT, now, level, false);
+            now += 20 * MINUTE;
+        }
+        now -= 20 * MINUTE;
+        assertEquals(160, estimator.getMinutes(BatteryEstimator.LEFT, now), 1);
+        long previous = Long.MAX_VALUE;
+        for (int level = 7; level >= 2; level--) {
+            now += 5 * MINUTE;
+            estimator.update(BatteryEstimator.LEFT, now, level, false);
+            long minutes = estimator.getMinutes(BatteryEstimator.LEFT, now);
+            //while the window still contains slow levels the estimate is too long, but it keeps getting closer
+            assertTrue("level " + level + ": " + minutes, minutes >= level * 5 - 1 && minutes < previous);
+            previous = minutes;
+        }
+        //the window only holds the fast part now, the estimate is exact again
+        assertEquals(2 * 5, previous, 1);
+    }
+
+    @Test
+    public void noisyDischargeStaysClose() {
+        //a real curve with jitter in the timing of the level changes: 10 minutes per level +- 3 minutes
+        Random random = new Random(1);
+        BatteryEstimator estimator = new BatteryEstimator();
+        long now = START;
+        for (int level = 10; level > 0; level--) {
+            now += (7 + random.nextInt(7)) * MINUTE;
+            estimator.update(BatteryEstimator.LEFT, now, level, false);
+            long minutes = estimator.getMinutes(BatteryEstimator.LEFT, now);
+            if (level <= 8) {
+                assertEquals("level " + level, level * 10, minutes, level * 4 + 5);
+            }
+        }
+    }
+
+    @Test
+    public void chargingDisconnectingAndGoingUpStartOver() {
+        BatteryEstimator estimator = new BatteryEstimator();
+        estimator.update(BatteryEstimator.LEFT, START, 9, false);
+        estimator.update(BatteryEstimator.LEFT, START + 10 * MINUTE, 8, false);
+        assertTrue(estimator.getMinutes(BatteryEstimator.LEFT, START + 10 * MINUTE) > 0);
+        //put back in the case: charging
+        estimator.update(BatteryEstimator.LEFT, START + 11 * MINUTE, 8, true);
+        assertEquals(-1, estimator.getMinutes(BatteryEstimator.LEFT, START + 11 * MINUTE));
+        //out of the case again, discharging from a level higher than before
+        estimator.update(BatteryEstimator.LEFT, START + 20 * MINUTE, 9, false);
+        assertEquals(-1, estimator.getMinutes(BatteryEstimator.LEFT, START + 20 * MINUTE));
+        estimator.update(BatteryEstimator.LEFT, START + 30 * MINUTE, 8, false);
+        assertEquals(80, estimator.getMinutes(BatteryEstimator.LEFT, START + 30 * MINUTE), 1);
+        //a level going up while discharging (beacon noise) starts a new window
+        estimator.update(BatteryEstimator.LEFT, START + 31 * MINUTE, 9, false);
+        assertEquals(-1, estimator.getMinutes(BatteryEstimator.LEFT, START + 31 * MINUTE));
+        //disconnected
+        estimator.update(BatteryEstimator.LEFT, START + 40 * MINUTE, 8, false);
+        estimator.update(BatteryEstimator.LEFT, START + 41 * MINUTE, PodsStatus.DISCONNECTED_STATUS, false);
+        assertEquals(-1, estimator.getMinutes(BatteryEstimator.LEFT, START + 41 * MINUTE));
+        //the other components are independent
+        assertEquals(-1, estimator.getMinutes(BatteryEstimator.RIGHT, START + 41 * MINUTE));
+        assertEquals(-1, estimator.getMinutes(BatteryEstimator.CASE, START + 41 * MINUTE));
+    }
+
+    @Test
+    public void seededFromTheHistoryAfterARestart() throws Exception {
+        //the service that recorded these statuses is gone, a new one only has the history file
+        File f = new File(folder.getRoot(), BatteryHistory.FILE_NAME);
+        long now = START;
+        try (BatteryHistory history = new BatteryHistory(f, BatteryHistory.DEFAULT_CAPACITY)) {
+            //yesterday, charging in the case: too old to be used
+            history.append(now - 24 * 60 * MINUTE, PodsStatus.pack(3, 3, 9, 0b011, 0x0E));
+            for (int level = 10; level >= 6; level--) {
+                history.append(now, PodsStatus.pack(level, level - 1, 8, 0, 0x0E));
+                now += 15 * MINUTE;
+            }
+        }
+        now -= 15 * MINUTE;
+        BatteryEstimator estimator = new BatteryEstimator();
+        try (BatteryHistory history = new BatteryHistory(f, BatteryHistory.DEFAULT_CAPACITY)) {
+            estimator.seed(history, now);
+        }
+        assertEquals(6 * 15, estimator.getMinutes(BatteryEstimator.LEFT, now), 1);
+        assertEquals(5 * 15, estimator.getMinutes(BatteryEstimator.RIGHT, now), 1);
+        assertEquals(-1, estimator.getMinutes(BatteryEstimator.CASE, now));
+        estimator.reset();
+        assertEquals(-1, estimator.getMinutes(BatteryEstimator.LEFT, now));
+    }
+}
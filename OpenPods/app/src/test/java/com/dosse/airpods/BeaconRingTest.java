@@ -0,0 +1,153 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test for BeaconRing: the scan callback offering beacons on one thread while the decoding thread polls them on
+ * another one. Every field of an entry is derived from its sequence number, so a torn entry is caught.
+ */
+public class BeaconRingTest {
+
+    private static final int DATA_LENGTH = PodsStatusScanCallback.AIRPOD_DATA_LENGTH;
+    private static final int BEACONS = 2000000;
+
+    private static void fill(byte[] data, long seq) {
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (seq + i);
+        }
+    }
+
+    /**
+     * Checks that the entry returned by the last poll is entirely the one with sequence number seq
+     */
+    private static void assertEntry(BeaconRing ring, long seq, Object[] tags, byte[] expected) {
+        assertEquals(seq * 3, ring.getAddress());
+        assertEquals((int) seq, ring.getRssi());
+        assertEquals(-seq, ring.getReceivedNs());
+        assertSame(tags[(int) (seq % tags.length)], ring.getTag());
+        fill(expected, seq);
+        assertArrayEquals("entry " + seq, expected, ring.getData());
+    }
+
+    /**
+     * Offers BEACONS beacons while another thread polls them, and checks what the consumer saw
+     *
+     * @return number of entries dropped
+     * @param capacity    small, so that the producer keeps overwriting the entries the consumer is copying
+     * @param consumerLag the consumer yields every consumerLag entries, so that the queue fills up and drops entries
+     */
+    private static long producerConsumer(int capacity, final int consumerLag) throws InterruptedException {
+        final BeaconRing ring = new BeaconRing(capacity, DATA_LENGTH);
+        final Object[] tags = new Object[7];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = new Object();
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicLong rejected = new AtomicLong(-1); //offers that returned false, set when the producer is done
+        Thread producer = new Thread(() -> {
+            byte[] data = new byte[DATA_LENGTH];
+            try {
+                start.await();
+                long full = 0;
+                for (long seq = 0; seq < BEACONS; seq++) {
+                    fill(data, seq);
+                    if (!ring.offer(seq, seq * 3, (int) seq, data, tags[(int) (seq % tags.length)], -seq)) {
+                        full++;
+                    }
+                }
+                rejected.set(full);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        producer.start();
+        byte[] expected = new byte[DATA_LENGTH];
+        long consumed = 0;
+        long last = -1;
+        start.countDown();
+        while (true) {
+            boolean finished = rejected.get() >= 0;
+            if (!ring.poll()) {
+                if (finished || failure.get() != null) {
+                    break;
+                }
+                continue;
+            }
+            long seq = ring.getTimestamp();
+            //entries come out in the order they went in, each one at most once
+            assertTrue("entry " + seq + " after " + last, seq > last);
+            assertEntry(ring, seq, tags, expected);
+            last = seq;
+            consumed++;
+            if (consumed % consumerLag == 0) {
+                Thread.yield();
+            }
+        }
+        producer.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(ring.isEmpty());
+        assertEquals(BEACONS - 1, last);
+        assertEquals(rejected.get(), ring.getDropped());
+        assertEquals(BEACONS, consumed + ring.getDropped());
+        return ring.getDropped();
+    }
+
+    @Test
+    public void producerConsumerKeepingUp() throws InterruptedException {
+        //a consumer that keeps up most of the time, like the decoding thread
+        producerConsumer(BeaconRing.DEFAULT_CAPACITY, Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void producerConsumerOnAFullRing() throws InterruptedException {
+        //a tiny ring and a slow consumer: the producer drops entries all the time, often the one being copied
+        long dropped = producerConsumer(4, 16);
+        assertTrue("dropped " + dropped, dropped > 0);
+    }
+
+    @Test
+    public void overflowDropsTheOldest() {
+        BeaconRing ring = new BeaconRing(4, DATA_LENGTH);
+        Object[] tags = {new Object()};
+        byte[] data = new byte[DATA_LENGTH];
+        for (long seq = 0; seq < 10; seq++) {
+            fill(data, seq);
+            //the first 4 fit, then every offer drops the oldest entry
+            assertEquals(seq < 4, ring.offer(seq, seq * 3, (int) seq, data, tags[0], -seq));
+        }
+        assertEquals(6, ring.getDropped());
+        byte[] expected = new byte[DATA_LENGTH];
+        for (long seq = 6; seq < 10; seq++) {
+            assertTrue(ring.poll());
+            assertEquals(seq, ring.getTimestamp());
+            assertEntry(ring, seq, tags, expected);
+        }
+        assertFalse(ring.poll());
+        assertTrue(ring.isEmpty());
+        //room again after polling
+        assertTrue(ring.offer(10, 30, 10, data, null, -10));
+        assertTrue(ring.poll());
+        assertEquals(10, ring.getTimestamp());
+        assertNull(ring.getTag());
+        assertEquals(6, ring.getDropped());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new BeaconRing(100, DATA_LENGTH);
+    }
+}
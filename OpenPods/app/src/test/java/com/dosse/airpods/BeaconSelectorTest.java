@@ -0,0 +1,158 @@
+package com.dosse.airpods;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static com.dosse.airpods.PodsStatusScanCallback.AIRPOD_DATA_LENGTH;
+import static com.dosse.airpods.PodsStatusScanCallback.MIN_RSSI;
+import static com.dosse.airpods.PodsStatusScanCallback.RECENT_BEACONS_MAX_ADDRESSES;
+import static com.dosse.airpods.PodsStatusScanCallback.RECENT_BEACONS_MAX_PER_ADDRESS;
+import static com.dosse.airpods.PodsStatusScanCallback.RECENT_BEACONS_MAX_T_NS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records noisy synthetic traces with BeaconTrace, replays them through a BeaconWindow and a BeaconSelector set up like
+ * in PodsStatusScanCallback, and checks that the hysteresis keeps the selection from flipping around.
+ * The strongest beacon in the window, which is what we listened to before the selector, is counted too for comparison.
+ */
+public class BeaconSelectorTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final long BEACON_INTERVAL_NS = SECOND / 5; //a pair of AirPods sends a few beacons per second
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * A pair of AirPods at a distance that changes linearly from startRssi to endRssi during the trace.
+     * On top of that, every beacon has gaussian noise with the given deviation, and a few are lost.
+     */
+    private static final class Source {
+        final long address;
+        final double startRssi;
+        final double endRssi;
+        final double noise;
+
+        Source(long address, double startRssi, double endRssi, double noise) {
+            this.address = address;
+            this.startRssi = startRssi;
+            this.endRssi = endRssi;
+            this.noise = noise;
+        }
+    }
+
+    private static final class Replay {
+        long beacons;
+        long switches; //selection moved from an address to another one
+        long dropouts; //selection lost, nothing selected
+        long strongestSwitches; //the strongest beacon in the window moved from an address to another one
+        long selectedAddress = -1; //at the end of the trace
+        long firstSelectedAt = -1; //time when the selection first moved to the last selected address
+    }
+
+    private File record(long seed, long durationNs, Source... sources) throws IOException {
+        File f = folder.newFile();
+        Random random = new Random(seed);
+        byte[] data = new byte[AIRPOD_DATA_LENGTH];
+        try (BeaconTrace.Writer writer = new BeaconTrace.Writer(f)) {
+            for (long t = 0; t < durationNs; t += BEACON_INTERVAL_NS / sources.length) {
+                Source s = sources[random.nextInt(sources.length)];
+                if (random.nextInt(10) == 0) {
+                    continue;
+                }
+                double mean = s.startRssi + (s.endRssi - s.startRssi) * t / durationNs;
+                data[0] = 0x07;
+                writer.write(t + random.nextInt(1000000), s.address, (int) Math.round(mean + random.nextGaussian() * s.noise), data);
+            }
+        }
+        return f;
+    }
+
+    private static Replay replay(File f) throws IOException, InterruptedException {
+        final BeaconWindow<Object> window = new BeaconWindow<>(RECENT_BEACONS_MAX_ADDRESSES, RECENT_BEACONS_MAX_PER_ADDRESS,
+                AIRPOD_DATA_LENGTH, RECENT_BEACONS_MAX_T_NS);
+        final BeaconSelector selector = new BeaconSelector(RECENT_BEACONS_MAX_ADDRESSES, MIN_RSSI,
+                BeaconSelector.DEFAULT_DWELL_NS, RECENT_BEACONS_MAX_T_NS);
+        final Replay r = new Replay();
+        final long[] strongest = {-1};
+        try (InputStream in = new FileInputStream(f)) {
+            r.beacons = BeaconTrace.read(in, (timestampNs, address, rssi, data) -> {
+                int best = window.add(address, timestampNs, rssi, data, null, timestampNs);
+                long bestAddress = window.getAddress(best);
+                if (strongest[0] != -1 && bestAddress != strongest[0]) {
+                    r.strongestSwitches++;
+                }
+                strongest[0] = bestAddress;
+                int selected = selector.update(window.getLastSlot(), address, rssi, timestampNs);
+                long selectedAddress = selected < 0 ? -1 : window.getAddress(selected);
+                if (selectedAddress != r.selectedAddress) {
+                    if (selectedAddress == -1) {
+                        r.dropouts++;
+                    } else {
+                        r.firstSelectedAt = timestampNs;
+                    }
+                    r.selectedAddress = selectedAddress;
+                }
+            }, false);
+        }
+        r.switches = selector.getSwitches();
+        return r;
+    }
+
+    @Test
+    public void twoPairsAtTheSameDistance() throws Exception {
+        //on the bus, next to someone with the same AirPods: 10 minutes of two pairs 2db apart, with 5db of noise
+        Source mine = new Source(0x111111111111L, -48, -48, 5);
+        Source theirs = new Source(0x222222222222L, -50, -50, 5);
+        Replay r = replay(record(1, 600 * SECOND, mine, theirs));
+        assertTrue(r.beacons > 5000);
+        //the strongest beacon in the window flips all the time, the selection at most once a minute, and 10 times less
+        assertTrue("switches: " + r.switches, r.switches <= 10);
+        assertTrue("strongest switches: " + r.strongestSwitches, r.strongestSwitches >= 10 * r.switches);
+        assertEquals(0, r.dropouts);
+    }
+
+    @Test
+    public void signalAroundTheThreshold() throws Exception {
+        //a single pair right at the edge of MIN_RSSI
+        Source mine = new Source(0x111111111111L, MIN_RSSI, MIN_RSSI, 5);
+        Replay r = replay(record(2, 600 * SECOND, mine));
+        //half of the beacons are below the threshold, but the smoothed RSSI only rarely falls HYSTERESIS db below it
+        assertTrue("dropouts: " + r.dropouts, r.dropouts <= 10);
+        assertEquals(0, r.switches);
+    }
+
+    @Test
+    public void crowdWithOneClosePair() throws Exception {
+        //10 pairs around at -65..-75, mine at -45: nothing else is ever selected
+        Source[] sources = new Source[11];
+        sources[0] = new Source(0x100000000000L, -45, -45, 6);
+        for (int i = 1; i < sources.length; i++) {
+            sources[i] = new Source(0x100000000000L + i, -65 - i, -65 - i, 6);
+        }
+        Replay r = replay(record(3, 300 * SECOND, sources));
+        assertEquals(0, r.switches);
+        assertEquals(0, r.dropouts);
+        assertEquals(BeaconTrace.hashAddress(sources[0].address), r.selectedAddress);
+    }
+
+    @Test
+    public void handoffHappensOnceAndNotTooLate() throws Exception {
+        //I put my AirPods away (-40 to -70) while someone else walks closer (-70 to -40), 2 minutes
+        Source mine = new Source(0x111111111111L, -40, -70, 5);
+        Source theirs = new Source(0x222222222222L, -70, -40, 5);
+        Replay r = replay(record(4, 120 * SECOND, mine, theirs));
+        assertTrue("switches: " + r.switches, r.switches <= 1);
+        assertEquals(BeaconTrace.hashAddress(theirs.address), r.selectedAddress);
+        //the signals cross at 60s, and they're SWITCH_MARGIN apart 12s later: the switch must come within a few seconds of that
+        assertTrue("switched at " + r.firstSelectedAt / SECOND + "s", r.firstSelectedAt > 60 * SECOND && r.firstSelectedAt < 85 * SECOND);
+    }
+}
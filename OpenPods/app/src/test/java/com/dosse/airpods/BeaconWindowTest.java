@@ -0,0 +1,134 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic crowds of beacons through a BeaconWindow and compares its answer with a brute force scan
+ * of all the beacons received in the window, like the old ArrayList in PodsStatusScanCallback did.
+ */
+public class BeaconWindowTest {
+
+    private static final int BEACONS = 10000;
+    private static final int DATA_LENGTH = 27;
+    private static final long MAX_AGE_NS = 1000000000L; //1 s, shorter than RECENT_BEACONS_MAX_T_NS (10 s) so that beacons expire many times in a test
+
+    private static final class Beacon {
+        final long address;
+        final long timestampNs;
+        final int rssi;
+
+        Beacon(long address, long timestampNs, int rssi) {
+            this.address = address;
+            this.timestampNs = timestampNs;
+            this.rssi = rssi;
+        }
+    }
+
+    /**
+     * Strongest RSSI among the beacons received in the window
+     */
+    private static int bruteForceBest(List<Beacon> beacons) {
+        int best = Integer.MIN_VALUE;
+        for (Beacon b : beacons) {
+            best = Math.max(best, b.rssi);
+        }
+        return best;
+    }
+
+    private static boolean isTracked(BeaconWindow<?> window, int slots, long address) {
+        for (int i = 0; i < slots; i++) {
+            if (window.getAddress(i) == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void replayCrowd(long seed, int addresses, int slots, int capacity, int maxIntervalUs) {
+        Random random = new Random(seed);
+        BeaconWindow<Long> window = new BeaconWindow<>(slots, capacity, DATA_LENGTH, MAX_AGE_NS);
+        List<Beacon> received = new ArrayList<>();
+        byte[] data = new byte[DATA_LENGTH];
+        byte[] copy = new byte[DATA_LENGTH];
+        long now = 0;
+        for (int n = 0; n < BEACONS; n++) {
+            now += random.nextInt(maxIntervalUs) * 1000L;
+            long address = 0x4C0000000000L + random.nextInt(addresses);
+            int rssi = -100 + random.nextInt(70);
+            random.nextBytes(data);
+            Beacon beacon = new Beacon(address, now, rssi);
+            received.add(beacon);
+
+            int best = window.add(address, now, rssi, data, address, now);
+
+            int slot = window.getLastSlot();
+            assertEquals(address, window.getAddress(slot));
+            assertEquals(rssi, window.getLastRssi(slot));
+            assertEquals(Long.valueOf(address), window.getTag(slot));
+            window.copyLastData(slot, copy);
+            for (int i = 0; i < DATA_LENGTH; i++) {
+                assertEquals(data[i], copy[i]);
+            }
+
+            //forget the beacons that expired, and those of addresses the window evicted to make room for others
+            List<Beacon> inWindow = new ArrayList<>();
+            for (Beacon b : received) {
+                if (b.timestampNs >= now - MAX_AGE_NS && isTracked(window, slots, b.address)) {
+                    inWindow.add(b);
+                }
+            }
+            received = inWindow;
+
+            assertTrue(best >= 0);
+            int expected = bruteForceBest(received);
+            assertEquals("beacon " + n, expected, window.getStrongestRssi(best));
+            if (rssi == expected) {
+                assertEquals("beacon " + n + ": on equal RSSI the new beacon must win", slot, best);
+            }
+        }
+    }
+
+    @Test
+    public void sparseCrowdMatchesBruteForce() {
+        //a few sets around, a beacon every 0-50 ms
+        replayCrowd(1, 5, 8, 16, 50000);
+    }
+
+    @Test
+    public void denseCrowdMatchesBruteForce() {
+        //a crowded place: 30 sets, a beacon every 0-2 ms, ~33 beacons per address in the window
+        replayCrowd(2, 30, 32, 128, 2000);
+    }
+
+    @Test
+    public void moreAddressesThanSlotsMatchesBruteForceOnTrackedAddresses() {
+        //evictions: the answer must still be the strongest beacon among the addresses the window kept
+        replayCrowd(3, 200, 16, 64, 2000);
+    }
+
+    @Test
+    public void expiredBeaconsAreDropped() {
+        BeaconWindow<Object> window = new BeaconWindow<>(4, 8, DATA_LENGTH, MAX_AGE_NS);
+        byte[] data = new byte[DATA_LENGTH];
+        int strong = window.add(1, 0, -40, data, null, 0);
+        assertEquals(strong, window.add(2, MAX_AGE_NS / 2, -80, data, null, MAX_AGE_NS / 2));
+        int weak = window.add(2, MAX_AGE_NS + 1, -80, data, null, MAX_AGE_NS + 1);
+        assertEquals(2, window.getAddress(weak));
+        assertEquals(1, window.getAddressCount());
+    }
+
+    @Test
+    public void parseAddress() {
+        assertEquals(0xAABBCCDDEEFFL, BeaconWindow.parseAddress("AA:BB:CC:DD:EE:FF"));
+        assertEquals(0x0123456789abL, BeaconWindow.parseAddress("01:23:45:67:89:ab"));
+        assertEquals(-1, BeaconWindow.parseAddress("AA:BB:CC"));
+        assertEquals(-1, BeaconWindow.parseAddress(null));
+    }
+}
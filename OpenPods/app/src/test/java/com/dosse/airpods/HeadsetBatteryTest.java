@@ -0,0 +1,104 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses the vendor specific headset events the AirPods send over HFP, and checks the status HeadsetBattery builds from
+ * the reported level and the last beacon
+ */
+public class HeadsetBatteryTest {
+
+    private static final long START = 1600000000000L;
+
+    @Test
+    public void accessoryEvent() {
+        //+IPHONEACCEV=2,1,7,2,0: battery 7 (80%), docked no
+        assertEquals(80, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{2, 1, 7, 2, 0}));
+        //the battery doesn't have to be the first pair, and the arguments can be strings
+        assertEquals(10, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{"2", "2", "1", "1", "0"}));
+        assertEquals(100, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{1, 1, " 9 "}));
+    }
+
+    @Test
+    public void badAccessoryEvent() {
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+XAPL", new Object[]{1, 1, 7}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent(null, new Object[]{1, 1, 7}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", null));
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[0]));
+        //no battery key, out of range level, or fewer arguments than pairs
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{1, 2, 1}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{1, 1, 10}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{1, 1, -1}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{2, 2, 0, 1}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{"x", 1, 7}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryEvent("+IPHONEACCEV", new Object[]{1, null, 7}));
+    }
+
+    @Test
+    public void accessoryInfo() {
+        //+XAPL=004C-200E-0100,3: vendor Apple, product 0x200E (AirPods Pro)
+        assertEquals(0x0E, HeadsetBattery.parseAccessoryInfo("+XAPL", new Object[]{"004C-200E-0100", 3}));
+        assertEquals(0x0F, HeadsetBattery.parseAccessoryInfo("+XAPL", new Object[]{"004C-200f-0100", "3"}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryInfo("+XAPL", new Object[]{"004C"}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryInfo("+XAPL", new Object[]{"004C-XYZ-0100"}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryInfo("+XAPL", new Object[]{null}));
+        assertEquals(-1, HeadsetBattery.parseAccessoryInfo("+XAPL", new Object[0]));
+        assertEquals(-1, HeadsetBattery.parseAccessoryInfo("+IPHONEACCEV", new Object[]{"004C-200E-0100"}));
+    }
+
+    @Test
+    public void reportedLevelOnlyLowersTheLowestPod() {
+        HeadsetBattery battery = new HeadsetBattery();
+        assertNull(battery.getStatus(START));
+        //left 8 charging, right 6, case 5 charging
+        battery.onBeacon(new PodsStatus(PodsStatus.pack(8, 6, 5, 0b101, 0x0E), START));
+        PodsStatus status = battery.onLevel(40, START + 1000);
+        assertEquals(8, status.getLeftLevel());
+        assertEquals(4, status.getRightLevel());
+        assertEquals(5, status.getCaseLevel());
+        assertTrue(status.isLeftCharging());
+        assertFalse(status.isRightCharging());
+        assertTrue(status.isCaseCharging());
+        assertEquals(0x0E, status.getModelId());
+        assertEquals(START + 1000, status.getTimestamp());
+        //a report higher than the beacon doesn't raise it
+        status = battery.onLevel(90, START + 2000);
+        assertEquals(8, status.getLeftLevel());
+        assertEquals(6, status.getRightLevel());
+    }
+
+    @Test
+    public void podInTheCaseStaysDisconnected() {
+        HeadsetBattery battery = new HeadsetBattery();
+        battery.onBeacon(new PodsStatus(PodsStatus.pack(PodsStatus.DISCONNECTED_STATUS, 7, 5, 0, 0x0F), START));
+        PodsStatus status = battery.onLevel(30, START);
+        assertEquals(PodsStatus.DISCONNECTED_STATUS, status.getLeftLevel());
+        assertEquals(3, status.getRightLevel());
+        battery.onBeacon(new PodsStatus(PodsStatus.pack(PodsStatus.DISCONNECTED_STATUS, PodsStatus.DISCONNECTED_STATUS, 5, 0, 0x0F), START));
+        assertFalse(battery.getStatus(START).isAllDisconnected());
+        assertEquals(PodsStatus.DISCONNECTED_STATUS, battery.getStatus(START).getLeftLevel());
+        assertEquals(PodsStatus.DISCONNECTED_STATUS, battery.getStatus(START).getRightLevel());
+    }
+
+    @Test
+    public void scanNeededWhenTheBeaconIsOld() {
+        HeadsetBattery battery = new HeadsetBattery(10000, 2000);
+        assertTrue(battery.isScanNeeded(START));
+        battery.onLevel(50, START);
+        assertTrue(battery.isScanNeeded(START));
+        battery.onBeacon(new PodsStatus(PodsStatus.pack(5, 5, 5, 0, 0x0E), START));
+        assertFalse(battery.isScanNeeded(START + 9999));
+        assertTrue(battery.isScanNeeded(START + 10000));
+        //a charging case is refreshed more often
+        battery.onBeacon(new PodsStatus(PodsStatus.pack(5, 5, 5, 0b100, 0x0E), START));
+        assertEquals(1000, battery.getRefreshDelay(START + 1000));
+        battery.onDisconnected();
+        assertTrue(battery.isScanNeeded(START));
+        assertNull(battery.getStatus(START));
+    }
+}
@@ -0,0 +1,172 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pins the mapping from the model id in the beacon to PodsModel and to the layout of the notification,
+ * and decodes golden payloads through PodsStatus with the 8 bit model field of the packed status.
+ */
+public class PodsModelTest {
+
+    //every id we know, anything else must be UNKNOWN
+    private static final Map<Integer, PodsModel> IDS = new HashMap<>();
+
+    static {
+        IDS.put(0x02, PodsModel.AIRPODS_1);
+        IDS.put(0x0F, PodsModel.AIRPODS_2);
+        IDS.put(0x13, PodsModel.AIRPODS_3);
+        IDS.put(0x19, PodsModel.AIRPODS_4);
+        IDS.put(0x1B, PodsModel.AIRPODS_4);
+        IDS.put(0x0E, PodsModel.AIRPODS_PRO);
+        IDS.put(0x14, PodsModel.AIRPODS_PRO_2);
+        IDS.put(0x24, PodsModel.AIRPODS_PRO_2);
+        IDS.put(0x0A, PodsModel.AIRPODS_MAX);
+        IDS.put(0x03, PodsModel.POWERBEATS_3);
+        IDS.put(0x0B, PodsModel.POWERBEATS_PRO);
+        IDS.put(0x05, PodsModel.BEATS_X);
+        IDS.put(0x10, PodsModel.BEATS_FLEX);
+        IDS.put(0x06, PodsModel.BEATS_SOLO_3);
+        IDS.put(0x0C, PodsModel.BEATS_SOLO_PRO);
+        IDS.put(0x09, PodsModel.BEATS_STUDIO_3);
+        IDS.put(0x17, PodsModel.BEATS_STUDIO_PRO);
+        IDS.put(0x11, PodsModel.BEATS_STUDIO_BUDS);
+        IDS.put(0x16, PodsModel.BEATS_STUDIO_BUDS_PLUS);
+        IDS.put(0x12, PodsModel.BEATS_FIT_PRO);
+    }
+
+    private static byte[] hex(String s) {
+        s = s.replace(" ", "");
+        byte[] data = new byte[s.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        assertEquals(PodsStatusScanCallback.AIRPOD_DATA_LENGTH, data.length);
+        return data;
+    }
+
+    /**
+     * Decodes the payload, checks that packing and unpacking give the same status, and returns it
+     */
+    private static PodsStatus decode(String payload) {
+        byte[] data = hex(payload);
+        PodsStatus status = new PodsStatus(data, null);
+        assertEquals(PodsStatus.pack(data), status.getPacked());
+        assertEquals(status, new PodsStatus(status.getPacked(), 0));
+        assertEquals(data[3] & 0xFF, status.getModelId());
+        return status;
+    }
+
+    @Test
+    public void idMapping() {
+        for (int id = 0; id < 256; id++) {
+            PodsModel expected = IDS.containsKey(id) ? IDS.get(id) : PodsModel.UNKNOWN;
+            assertSame("id " + Integer.toHexString(id), expected, PodsModel.fromId(id));
+        }
+        //only the low 8 bits count
+        assertSame(PodsModel.AIRPODS_PRO, PodsModel.fromId(0x10E));
+        assertSame(PodsModel.AIRPODS_PRO, PodsModel.fromId((byte) 0x0E));
+    }
+
+    @Test
+    public void everyModelHasAnId() {
+        for (PodsModel model : PodsModel.values()) {
+            assertTrue(model.getName(), model == PodsModel.UNKNOWN || IDS.containsValue(model));
+        }
+    }
+
+    @Test
+    public void layouts() {
+        for (PodsModel model : PodsModel.values()) {
+            assertTrue(model.getName(), model.getPodImage(true) != 0 && model.getPodImage(false) != 0);
+            //a model either has a case with images, or a single battery and no case
+            assertEquals(model.getName(), model.hasCase(), !model.isSingleBattery());
+            assertEquals(model.getName(), model.hasCase(), model.getCaseImage(true) != 0 && model.getCaseImage(false) != 0);
+        }
+        assertEquals(R.drawable.podpro, PodsModel.AIRPODS_PRO.getPodImage(true));
+        assertEquals(R.drawable.podpro_case_disconnected, PodsModel.AIRPODS_PRO_2.getCaseImage(false));
+        assertEquals(R.drawable.pod, PodsModel.AIRPODS_2.getPodImage(true));
+        assertEquals(R.drawable.pod_case, PodsModel.BEATS_FIT_PRO.getCaseImage(true));
+    }
+
+    @Test
+    public void airPodsPro() {
+        //bit 5 of byte 5 set: left is the low nibble of byte 6 (8) and right the high one (9), case 5 charging
+        PodsStatus status = decode("07 19 01 0E 20 2B 98 45 01 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
+        assertSame(PodsModel.AIRPODS_PRO, status.getModel());
+        assertEquals(8, status.getLeftLevel());
+        assertEquals(9, status.getRightLevel());
+        assertEquals(5, status.getCaseLevel());
+        assertFalse(status.isLeftCharging());
+        assertFalse(status.isRightCharging());
+        assertTrue(status.isCaseCharging());
+    }
+
+    @Test
+    public void flippedAirPods2() {
+        //bit 5 of byte 5 clear: left and right are swapped in byte 6
+        PodsStatus status = decode("07 19 01 0F 20 0B 98 3F 01 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
+        assertSame(PodsModel.AIRPODS_2, status.getModel());
+        assertEquals(9, status.getLeftLevel());
+        assertEquals(8, status.getRightLevel());
+        assertEquals(PodsStatus.DISCONNECTED_STATUS, status.getCaseLevel());
+        assertTrue(status.isLeftCharging());
+        assertTrue(status.isRightCharging());
+        assertFalse(status.isCaseCharging());
+    }
+
+    @Test
+    public void airPodsMaxHasSingleBatteryAndNoCase() {
+        //the only battery is reported as the left pod, right and case are disconnected
+        PodsStatus status = decode("07 19 01 0A 20 2B F7 1F 01 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
+        PodsModel model = status.getModel();
+        assertSame(PodsModel.AIRPODS_MAX, model);
+        assertTrue(model.isSingleBattery());
+        assertFalse(model.hasCase());
+        assertEquals(0, model.getCaseImage(true));
+        assertEquals(0, model.getCaseImage(false));
+        assertEquals(7, status.getLeftLevel());
+        assertTrue(status.isLeftCharging());
+        assertFalse(status.isRightConnected());
+        assertFalse(status.isCaseConnected());
+        assertFalse(status.isAllDisconnected());
+    }
+
+    @Test
+    public void unknownIdFallsBackToAirPods() {
+        //ids with the high bit set must not leak into the other fields of the packed status
+        for (String id : new String[]{"01", "7F", "80", "FF"}) {
+            PodsStatus status = decode("07 19 01 " + id + " 20 2B 56 27 01 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00 00");
+            PodsModel model = status.getModel();
+            assertSame(id, PodsModel.UNKNOWN, model);
+            assertEquals(Integer.parseInt(id, 16), status.getModelId());
+            assertTrue(model.hasCase());
+            assertFalse(model.isSingleBattery());
+            assertEquals(R.drawable.pod, model.getPodImage(true));
+            assertEquals(R.drawable.pod_case, model.getCaseImage(true));
+            assertEquals(6, status.getLeftLevel());
+            assertEquals(5, status.getRightLevel());
+            assertEquals(7, status.getCaseLevel());
+            assertFalse(status.isLeftCharging());
+            assertTrue(status.isRightCharging());
+            assertFalse(status.isCaseCharging());
+        }
+    }
+
+    @Test
+    public void packedModelIsEightBits() {
+        long packed = PodsStatus.pack(1, 2, 3, 0b111, 0xFF);
+        assertEquals(0xFF, new PodsStatus(packed, 0).getModelId());
+        assertEquals(0, packed >>> 24);
+        //an id that doesn't fit is cut to 8 bits instead of spilling over
+        assertEquals(PodsStatus.pack(1, 2, 3, 0b111, 0x0E), PodsStatus.pack(1, 2, 3, 0b111, 0x10E));
+        assertSame(PodsModel.AIRPODS_PRO, new PodsStatus(PodsStatus.pack(1, 2, 3, 0, 0x10E), 0).getModel());
+    }
+}
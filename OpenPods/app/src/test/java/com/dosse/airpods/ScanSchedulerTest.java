@@ -0,0 +1,144 @@
+package com.dosse.airpods;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.dosse.airpods.ScanScheduler.MODE_BALANCED;
+import static com.dosse.airpods.ScanScheduler.MODE_LOW_LATENCY;
+import static com.dosse.airpods.ScanScheduler.MODE_LOW_POWER;
+import static com.dosse.airpods.ScanScheduler.MODE_OFF;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a ScanScheduler with a fake clock and a fake scanner that fires onTimer when the scheduled time comes
+ */
+public class ScanSchedulerTest {
+
+    private static final long BALANCED = 30000;
+    private static final long LOW_POWER = 120000;
+    private static final long STALE = 15000;
+
+    private long now;
+    private long timer; //time at which onTimer should be called, -1 if not scheduled
+    private final List<Integer> modes = new ArrayList<>();
+    private ScanScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        now = 1000;
+        timer = -1;
+        modes.clear();
+        scheduler = new ScanScheduler(new ScanScheduler.Scanner() {
+            @Override
+            public void startScan(int mode) {
+                modes.add(mode);
+            }
+
+            @Override
+            public void schedule(long delayMs) {
+                timer = delayMs < 0 ? -1 : now + delayMs;
+            }
+        }, () -> now, BALANCED, LOW_POWER, STALE);
+    }
+
+    /**
+     * Moves the clock forward by ms, firing the timer every time it's due
+     */
+    private void advance(long ms) {
+        long end = now + ms;
+        while (timer >= 0 && timer <= end) {
+            now = timer;
+            timer = -1;
+            scheduler.onTimer();
+        }
+        now = end;
+    }
+
+    /**
+     * Moves the clock forward by ms, with a beacon carrying the same status every intervalMs
+     */
+    private void beacons(long ms, long intervalMs) {
+        for (long t = 0; t < ms; t += intervalMs) {
+            advance(intervalMs);
+            scheduler.onStatus(false);
+        }
+    }
+
+    @Test
+    public void stableStatusStepsDown() {
+        scheduler.start();
+        assertEquals(MODE_LOW_LATENCY, scheduler.getMode());
+        beacons(BALANCED - 1000, 1000);
+        assertEquals(MODE_LOW_LATENCY, scheduler.getMode());
+        beacons(2000, 1000);
+        assertEquals(MODE_BALANCED, scheduler.getMode());
+        beacons(LOW_POWER - BALANCED, 1000);
+        assertEquals(MODE_LOW_POWER, scheduler.getMode());
+        beacons(10 * LOW_POWER, 1000);
+        assertEquals(MODE_LOW_POWER, scheduler.getMode());
+        assertTrue(timer > now && timer <= now + STALE); //only the watchdog for missing beacons is left
+        assertEquals(3, modes.size());
+    }
+
+    @Test
+    public void changeBoostsBackToLowLatency() {
+        scheduler.start();
+        beacons(LOW_POWER + 1000, 1000);
+        assertEquals(MODE_LOW_POWER, scheduler.getMode());
+        scheduler.onStatus(true);
+        assertEquals(MODE_LOW_LATENCY, scheduler.getMode());
+        //the countdown starts again from the change
+        beacons(BALANCED + 1000, 1000);
+        assertEquals(MODE_BALANCED, scheduler.getMode());
+    }
+
+    @Test
+    public void wakeUpBoosts() {
+        scheduler.start();
+        beacons(BALANCED + 1000, 1000);
+        scheduler.onWakeUp();
+        assertEquals(MODE_LOW_LATENCY, scheduler.getMode());
+    }
+
+    @Test
+    public void missingBeaconsBoostOnce() {
+        scheduler.start();
+        beacons(LOW_POWER + 1000, 1000);
+        assertEquals(MODE_LOW_POWER, scheduler.getMode());
+        advance(STALE);
+        assertEquals(MODE_LOW_LATENCY, scheduler.getMode());
+        //still nothing: step down again and don't keep boosting
+        advance(BALANCED);
+        assertEquals(MODE_BALANCED, scheduler.getMode());
+        advance(LOW_POWER);
+        assertEquals(MODE_LOW_POWER, scheduler.getMode());
+        advance(10 * LOW_POWER);
+        assertEquals(MODE_LOW_POWER, scheduler.getMode());
+    }
+
+    @Test
+    public void stopCancelsTimerAndIgnoresEvents() {
+        scheduler.start();
+        scheduler.stop();
+        assertEquals(MODE_OFF, scheduler.getMode());
+        assertEquals(-1, timer);
+        scheduler.onStatus(true);
+        scheduler.onWakeUp();
+        scheduler.onTimer();
+        assertEquals(MODE_OFF, scheduler.getMode());
+    }
+
+    @Test
+    public void timeInModeAddsUp() {
+        scheduler.start();
+        beacons(LOW_POWER + 60000, 1000);
+        scheduler.stop();
+        assertEquals(BALANCED, scheduler.getTimeInMode(MODE_LOW_LATENCY));
+        assertEquals(LOW_POWER - BALANCED, scheduler.getTimeInMode(MODE_BALANCED));
+        assertEquals(60000, scheduler.getTimeInMode(MODE_LOW_POWER));
+    }
+}
@@ -0,0 +1,52 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that ScanStartLimiter never allows more than MAX_STARTS starts in WINDOW_MS, like the bluetooth service does
+ */
+public class ScanStartLimiterTest {
+
+    private static final long START = 1000000;
+
+    @Test
+    public void burstIsDelayed() {
+        ScanStartLimiter limiter = new ScanStartLimiter();
+        for (int i = 0; i < ScanStartLimiter.MAX_STARTS; i++) {
+            assertEquals(0, limiter.tryStart(START + i * 100));
+        }
+        //the next one has to wait for the first one to leave the window
+        long wait = limiter.tryStart(START + 500);
+        assertEquals(ScanStartLimiter.WINDOW_MS - 500, wait);
+        assertEquals(ScanStartLimiter.WINDOW_MS - 600, limiter.tryStart(START + 600));
+        assertEquals(0, limiter.tryStart(START + 500 + wait));
+        //then the second one
+        assertEquals(100, limiter.tryStart(START + ScanStartLimiter.WINDOW_MS));
+    }
+
+    @Test
+    public void neverMoreThanMaxStartsInAWindow() {
+        ScanStartLimiter limiter = new ScanStartLimiter();
+        long[] allowed = new long[1000];
+        int count = 0;
+        //someone asking for a restart every 700 ms, and retrying when told to
+        for (long now = START, next = START; count < allowed.length; now += 100) {
+            if (now < next) {
+                continue;
+            }
+            long wait = limiter.tryStart(now);
+            if (wait == 0) {
+                allowed[count++] = now;
+                next = now + 700;
+            } else {
+                next = now + wait;
+            }
+        }
+        for (int i = ScanStartLimiter.MAX_STARTS; i < count; i++) {
+            assertTrue("start " + i, allowed[i] - allowed[i - ScanStartLimiter.MAX_STARTS] >= ScanStartLimiter.WINDOW_MS);
+        }
+    }
+}
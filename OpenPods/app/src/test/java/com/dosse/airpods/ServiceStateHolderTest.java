@@ -0,0 +1,166 @@
+package com.dosse.airpods;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stress test for ServiceStateHolder: writers on several threads, like the scan callback, the broadcast receivers and the
+ * profile proxy listener, while readers poll and wait for newer generations.
+ */
+public class ServiceStateHolderTest {
+
+    private static final int CHANGES = 100000;
+    private static final long AWAIT_TIMEOUT_MS = 5000;
+
+    /**
+     * Runs the tasks on their own threads, all starting at the same time, and rethrows the first failure
+     */
+    private static void race(Runnable... tasks) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (final Runnable task : tasks) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run();
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    @Test
+    public void everyChangeIsPublishedOnce() throws InterruptedException {
+        final ServiceStateHolder holder = new ServiceStateHolder();
+        final PodsStatus[] statuses = new PodsStatus[CHANGES];
+        for (int i = 0; i < CHANGES; i++) {
+            statuses[i] = new PodsStatus(PodsStatus.pack(i % 11, 10 - i % 11, i % 7, i % 8, 0x0E), i);
+        }
+        final long base = holder.get().getGeneration();
+        //each writer owns one field, so every call changes something and must create exactly one generation
+        race(() -> {
+            for (int i = 0; i < CHANGES; i++) {
+                ServiceState old = holder.setConnected(i % 2 == 0);
+                assertEquals(i % 2 != 0, old.isConnected());
+            }
+        }, () -> {
+            for (int i = 0; i < CHANGES; i++) {
+                ServiceState old = holder.setLocationEnabled(i % 2 != 0);
+                assertEquals(i % 2 == 0, old.isLocationEnabled());
+            }
+        }, () -> {
+            for (int i = 0; i < CHANGES; i++) {
+                ServiceState old = holder.setStatus(statuses[i]);
+                assertSame(i == 0 ? PodsStatus.DISCONNECTED : statuses[i - 1], old.getStatus());
+            }
+        }, () -> {
+            //a reader polling: generations never go back
+            long generation = base;
+            while (generation < base + 3L * CHANGES) {
+                ServiceState s = holder.get();
+                assertTrue(s.getGeneration() >= generation);
+                assertNotNull(s.getStatus());
+                generation = s.getGeneration();
+            }
+        }, () -> {
+            //a reader waiting: a missed wake up would make it time out
+            long generation = base;
+            while (generation < base + 3L * CHANGES) {
+                ServiceState s;
+                try {
+                    s = holder.awaitNewer(generation, AWAIT_TIMEOUT_MS);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                assertTrue("stuck at generation " + generation, s.getGeneration() > generation);
+                generation = s.getGeneration();
+            }
+        });
+        ServiceState last = holder.get();
+        assertEquals(base + 3L * CHANGES, last.getGeneration());
+        assertEquals(false, last.isConnected());
+        assertEquals(true, last.isLocationEnabled());
+        assertSame(statuses[CHANGES - 1], last.getStatus());
+    }
+
+    @Test
+    public void sameValueDoesNotPublish() {
+        ServiceStateHolder holder = new ServiceStateHolder();
+        PodsStatus status = new PodsStatus(PodsStatus.pack(5, 5, 5, 0, 0x0E), 1);
+        holder.setStatus(status);
+        holder.setConnected(true);
+        long generation = holder.get().getGeneration();
+        holder.setStatus(status);
+        holder.setConnected(true);
+        holder.setLocationEnabled(holder.get().isLocationEnabled());
+        assertEquals(generation, holder.get().getGeneration());
+    }
+
+    @Test
+    public void refreshFromStalePublishesANewGeneration() {
+        ServiceStateHolder holder = new ServiceStateHolder();
+        PodsStatus status = new PodsStatus(PodsStatus.pack(5, 5, 5, 0, 0x0E), 1);
+        holder.setStatus(status);
+        long generation = holder.get().getGeneration();
+        //the timestamp was refreshed in place, the status itself is the same object
+        status.refresh(NotificationBuilder.TIMEOUT_CONNECTED * 2);
+        ServiceState old = holder.refreshStatus(status);
+        assertEquals(generation, old.getGeneration());
+        assertEquals(generation + 1, holder.get().getGeneration());
+        assertSame(status, holder.get().getStatus());
+        //a status that was already replaced doesn't publish anything
+        holder.setStatus(new PodsStatus(PodsStatus.pack(4, 5, 5, 0, 0x0E), 2));
+        generation = holder.get().getGeneration();
+        holder.refreshStatus(status);
+        assertEquals(generation, holder.get().getGeneration());
+    }
+
+    @Test
+    public void refreshedTimestampOnlyMovesForward() throws InterruptedException {
+        //while the status stays fresh, StatusCoalescer refreshes it in place instead of publishing a new snapshot
+        final ServiceStateHolder holder = new ServiceStateHolder();
+        final StatusCoalescer coalescer = new StatusCoalescer();
+        final byte[] data = new byte[27];
+        data[6] = (byte) 0x99;
+        data[7] = (byte) 0x19;
+        final PodsStatus status = new PodsStatus(data, null);
+        status.refresh(0);
+        coalescer.accept(status);
+        holder.setStatus(status);
+        final long generation = holder.get().getGeneration();
+        race(() -> {
+            for (int i = 1; i <= CHANGES; i++) {
+                assertEquals(i - 1, coalescer.refresh(data, i));
+            }
+        }, () -> {
+            long timestamp = 0;
+            while (timestamp < CHANGES) {
+                ServiceState s = holder.get();
+                assertEquals(generation, s.getGeneration());
+                assertTrue(s.getStatus().getTimestamp() >= timestamp);
+                timestamp = s.getStatus().getTimestamp();
+            }
+        });
+        assertSame(status, holder.get().getStatus());
+    }
+}
@@ -0,0 +1,88 @@
+package com.dosse.airpods;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when StatusSnapshot writes the file, in particular that the saved timestamps don't fall behind while only
+ * the timestamps change
+ */
+public class StatusSnapshotTest {
+
+    private static final long START = 1600000000000L;
+    private static final long PACKED = PodsStatus.pack(8, 7, 5, 0, 0x0E);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static long savedTimestamp(File f) {
+        return new StatusSnapshot(f).read().getStatus().getTimestamp();
+    }
+
+    @Test
+    public void timestampOnlyWritesAreRateLimited() throws Exception {
+        File f = new File(folder.getRoot(), StatusSnapshot.FILE_NAME);
+        StatusSnapshot snapshot = new StatusSnapshot(f);
+        PodsStatus status = new PodsStatus(PACKED, START);
+        ServiceState state = ServiceState.INITIAL.withStatus(status).withConnected(true);
+        snapshot.write(state, null);
+        assertEquals(START, savedTimestamp(f));
+        //beacons with the same status only refresh the timestamp
+        long t = START;
+        for (; t < START + StatusSnapshot.TIMESTAMP_WRITE_INTERVAL_MS; t += StatusSnapshot.MIN_WRITE_INTERVAL_MS) {
+            status.refresh(t);
+            snapshot.write(state, null);
+            assertEquals(START, savedTimestamp(f));
+        }
+        status.refresh(t);
+        snapshot.write(state, null);
+        assertEquals(t, savedTimestamp(f));
+        //the saved timestamp is never more than TIMESTAMP_WRITE_INTERVAL_MS behind, so a quick restart shows a fresh status
+        for (long end = t + 10 * NotificationBuilder.TIMEOUT_CONNECTED; t < end; t += StatusSnapshot.MIN_WRITE_INTERVAL_MS) {
+            status.refresh(t);
+            snapshot.write(state, null);
+            assertTrue(t - savedTimestamp(f) < StatusSnapshot.TIMESTAMP_WRITE_INTERVAL_MS);
+        }
+    }
+
+    @Test
+    public void finalWriteSavesTheLatestTimestamp() throws Exception {
+        File f = new File(folder.getRoot(), StatusSnapshot.FILE_NAME);
+        StatusSnapshot snapshot = new StatusSnapshot(f);
+        PodsStatus status = new PodsStatus(PACKED, START);
+        ServiceState state = ServiceState.INITIAL.withStatus(status).withConnected(true);
+        snapshot.write(state, null);
+        status.refresh(START + 1000);
+        snapshot.write(state, null);
+        assertEquals(START, savedTimestamp(f));
+        snapshot.writeFinal(state, null);
+        assertEquals(START + 1000, savedTimestamp(f));
+    }
+
+    @Test
+    public void deviceTimestampsAreKeptUpToDate() throws Exception {
+        File f = new File(folder.getRoot(), StatusSnapshot.FILE_NAME);
+        StatusSnapshot snapshot = new StatusSnapshot(f);
+        DeviceTable devices = new DeviceTable(DeviceTable.DEFAULT_CAPACITY);
+        PodsStatus status = new PodsStatus(PACKED, START);
+        devices.getCoalescer(devices.getSlot(0x123456789ABCL, 0x0E, 0)).accept(status);
+        ServiceState state = ServiceState.INITIAL.withConnected(true);
+        snapshot.write(state, devices);
+        //the main status doesn't change, only the timestamp of the device does
+        status.refresh(START + StatusSnapshot.TIMESTAMP_WRITE_INTERVAL_MS);
+        snapshot.write(state, devices);
+        StatusSnapshot restored = new StatusSnapshot(f);
+        restored.read();
+        assertTrue(restored.hasDevices());
+        DeviceTable restoredDevices = new DeviceTable(DeviceTable.DEFAULT_CAPACITY);
+        restored.restoreDevices(restoredDevices, 0);
+        assertEquals(START + StatusSnapshot.TIMESTAMP_WRITE_INTERVAL_MS, restoredDevices.getStatus(0).getTimestamp());
+        assertEquals(PACKED, restoredDevices.getStatus(0).getPacked());
+    }
+}
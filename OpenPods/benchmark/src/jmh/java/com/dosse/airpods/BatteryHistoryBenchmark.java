@@ -0,0 +1,142 @@
+package com.dosse.airpods;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * BatteryHistory on a memory mapped file of the default size:
+ * - append: every sample has a different status, so every call writes a record (the ring wraps many times during a run)
+ * - appendSame: the status didn't change, nothing is written, like most beacons
+ * - query: a day of history downsampled to the 200 points of the chart
+ * - day: a synthetic day of heavy use, beacon by beacon. At the end of the run, the records written per day and the
+ *   bytes needed for a year of them are printed, next to the days that fit in the file.
+ *
+ * Appending should allocate nothing.
+ */
+@State(Scope.Thread)
+public class BatteryHistoryBenchmark {
+
+    private static final int STATUSES = 1024;
+    private static final int QUERY_POINTS = 200;
+    private static final long SAMPLE_INTERVAL = 60000;
+
+    //the day of use of the day benchmark
+    private static final long MINUTE = 60000;
+    private static final long DAY = 24 * 60 * MINUTE;
+    private static final int SESSIONS_PER_DAY = 4; //8 hours with the pods in the ears
+    private static final long SESSION = 120 * MINUTE;
+    private static final long BEACON_INTERVAL = 10000; //statuses that reach the history, most of them are the same as the previous one
+    private static final long DRAIN_INTERVAL = 25 * MINUTE; //a pod loses a level every 25 minutes in the ears
+    private static final int NOISE = 100; //1 beacon in 100 reads the left pod one level higher, like right at the edge of a level
+    private static final int RECORD_SIZE = 12;
+    private static final int DAYS_PER_YEAR = 365;
+
+    private File file;
+    private BatteryHistory history;
+    private long[] statuses;
+    private int next;
+    private long now;
+    private final long[] timestamps = new long[QUERY_POINTS];
+    private final long[] packed = new long[QUERY_POINTS];
+    private final Random noise = new Random(2);
+    private int left = 10, right = 10, caseLevel = 10;
+    private long days, dayRecords;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("history", ".bin");
+        history = new BatteryHistory(file, BatteryHistory.DEFAULT_CAPACITY);
+        Random random = new Random(1);
+        statuses = new long[STATUSES];
+        for (int i = 0; i < STATUSES; i++) {
+            //consecutive statuses are always different
+            statuses[i] = PodsStatus.pack(i % 11, (i / 11) % 11, random.nextInt(11), random.nextInt(8), 0x0E);
+        }
+        //fill the file, so that query has a full day to look at
+        for (int i = 0; i < BatteryHistory.DEFAULT_CAPACITY; i++) {
+            append();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        history.close();
+        if (days > 0) {
+            long perDay = dayRecords / days;
+            System.out.println();
+            System.out.println(perDay + " records per day, " + perDay * DAYS_PER_YEAR * RECORD_SIZE + " bytes per year, "
+                    + BatteryHistory.DEFAULT_CAPACITY / perDay + " days in the file (" + file.length() + " bytes)");
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public boolean append() {
+        next = (next + 1) & (STATUSES - 1);
+        now += SAMPLE_INTERVAL;
+        return history.append(now, statuses[next]);
+    }
+
+    @Benchmark
+    public boolean appendSame() {
+        now += SAMPLE_INTERVAL;
+        return history.append(now, statuses[next]);
+    }
+
+    @Benchmark
+    public int query() {
+        return history.query(now - 24 * 60 * SAMPLE_INTERVAL, now, QUERY_POINTS, timestamps, packed);
+    }
+
+    /**
+     * Beacons of the pods in the case with the lid open, for a minute: the pods are charging
+     */
+    private int inCase(long start) {
+        int records = 0;
+        for (long t = 0; t < MINUTE; t += BEACON_INTERVAL) {
+            records += history.append(start + t, PodsStatus.pack(left, right, caseLevel, 0b011, 0x0E)) ? 1 : 0;
+        }
+        return records;
+    }
+
+    /**
+     * SESSIONS_PER_DAY sessions where the pods drain in the ears, each one starting and ending with the case open.
+     * Between sessions the pods charge back to full in the closed case, which is out of range, and the case pays for it.
+     * The case is charged every night.
+     */
+    @Benchmark
+    public int day() {
+        long dayStart = now - now % DAY + DAY;
+        int records = 0;
+        for (int s = 0; s < SESSIONS_PER_DAY; s++) {
+            long start = dayStart + (7 + 4 * s) * 60 * MINUTE;
+            records += inCase(start);
+            start += MINUTE;
+            int l = left, r = right;
+            for (long t = 0; t < SESSION; t += BEACON_INTERVAL) {
+                l = Math.max(0, left - (int) (t / DRAIN_INTERVAL));
+                r = Math.max(0, right - (int) ((t + DRAIN_INTERVAL / 3) / DRAIN_INTERVAL));
+                int shownLeft = noise.nextInt(NOISE) == 0 ? Math.min(10, l + 1) : l;
+                records += history.append(start + t, PodsStatus.pack(shownLeft, r, caseLevel, 0, 0x0E)) ? 1 : 0;
+            }
+            left = l;
+            right = r;
+            records += inCase(start + SESSION);
+            caseLevel = Math.max(0, caseLevel - (20 - left - right + 4) / 5);
+            left = 10;
+            right = 10;
+        }
+        caseLevel = 10;
+        now = dayStart + DAY - 1;
+        days++;
+        dayRecords += records;
+        return records;
+    }
+}
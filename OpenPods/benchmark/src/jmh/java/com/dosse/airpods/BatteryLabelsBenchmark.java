@@ -0,0 +1,76 @@
+package com.dosse.airpods;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * The texts and content descriptions of a status:
+ * - labels: the shared instances from BatteryLabels (should allocate nothing)
+ * - concatenation: the strings built on every call, like PodsStatus did before BatteryLabels, for comparison
+ * - build: a whole NotificationBuilder.build with statuses whose levels keep changing
+ */
+@State(Scope.Thread)
+public class BatteryLabelsBenchmark {
+
+    private static final int STATUSES = 1024;
+
+    private PodsStatus[] statuses;
+    private int next;
+    private NotificationBuilder builder;
+
+    @Setup
+    public void setup() {
+        Context context = new Context();
+        BatteryLabels.init(context);
+        builder = new NotificationBuilder(context, new BatteryEstimator());
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        statuses = new PodsStatus[STATUSES];
+        for (int i = 0; i < STATUSES; i++) {
+            //far in the future, so that they're always fresh and the texts are shown
+            statuses[i] = new PodsStatus(PodsStatus.pack(random.nextInt(11), random.nextInt(11), random.nextInt(11), random.nextInt(8), 0x0E),
+                    now + 365L * 24 * 3600 * 1000);
+        }
+    }
+
+    private PodsStatus nextStatus() {
+        next = (next + 1) & (STATUSES - 1);
+        return statuses[next];
+    }
+
+    @Benchmark
+    public void labels(Blackhole bh) {
+        PodsStatus status = nextStatus();
+        bh.consume(status.getLeftStatus());
+        bh.consume(status.getRightStatus());
+        bh.consume(status.getCaseStatus());
+        bh.consume(BatteryLabels.getDescription(BatteryLabels.LEFT, status.getLeftLevel(), status.isLeftCharging()));
+        bh.consume(BatteryLabels.getDescription(BatteryLabels.RIGHT, status.getRightLevel(), status.isRightCharging()));
+        bh.consume(BatteryLabels.getDescription(BatteryLabels.CASE, status.getCaseLevel(), status.isCaseCharging()));
+    }
+
+    private static String concatenate(int status, boolean charge) {
+        return (status == PodsStatus.MAX_CONNECTED_STATUS ? "100%" :
+                status < PodsStatus.MAX_CONNECTED_STATUS ? (((status) * 10 + 5) + "%" + (charge ? "+" : "")) : "");
+    }
+
+    @Benchmark
+    public void concatenation(Blackhole bh) {
+        PodsStatus status = nextStatus();
+        bh.consume(concatenate(status.getLeftLevel(), status.isLeftCharging()));
+        bh.consume(concatenate(status.getRightLevel(), status.isRightCharging()));
+        bh.consume(concatenate(status.getCaseLevel(), status.isCaseCharging()));
+    }
+
+    @Benchmark
+    public Object build() {
+        return builder.build(nextStatus(), true);
+    }
+}
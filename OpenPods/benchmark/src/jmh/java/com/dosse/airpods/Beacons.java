@@ -0,0 +1,64 @@
+package com.dosse.airpods;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import java.util.Random;
+
+import static com.dosse.airpods.PodsStatusScanCallback.AIRPOD_DATA_LENGTH;
+import static com.dosse.airpods.PodsStatusScanCallback.AIRPOD_MANUFACTURER;
+
+/**
+ * Synthetic beacons for the benchmarks
+ */
+final class Beacons {
+
+    private Beacons() {
+    }
+
+    /**
+     * Manufacturer data of a pair of AirPods Pro with these levels (0-10, or 15 for disconnected)
+     */
+    static byte[] payload(int left, int right, int caseLevel, int charge) {
+        byte[] data = new byte[AIRPOD_DATA_LENGTH];
+        data[0] = 7;
+        data[1] = 25;
+        data[3] = 0x0E;
+        data[4] = 0x20;
+        data[5] = 0b00100000;
+        data[6] = (byte) ((right << 4) | left);
+        data[7] = (byte) ((charge << 4) | caseLevel);
+        return data;
+    }
+
+    static byte[] randomPayload(Random random) {
+        return payload(random.nextInt(11), random.nextInt(11), random.nextInt(11), random.nextInt(8));
+    }
+
+    static String address(int i) {
+        return String.format("4C:00:00:00:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+    }
+
+    /**
+     * count scan results from devices addresses, the benchmarks set their timestamps.
+     * If changing is false, every device always sends the same status.
+     */
+    static ScanResult[] results(int count, int devices, boolean changing, long seed) {
+        Random random = new Random(seed);
+        BluetoothDevice[] d = new BluetoothDevice[devices];
+        byte[][] payloads = new byte[devices][];
+        for (int i = 0; i < devices; i++) {
+            d[i] = new BluetoothDevice(address(i));
+            payloads[i] = randomPayload(random);
+        }
+        ScanResult[] results = new ScanResult[count];
+        for (int i = 0; i < count; i++) {
+            int device = random.nextInt(devices);
+            byte[] data = changing ? randomPayload(random) : payloads[device];
+            int rssi = device == 0 ? -40 - random.nextInt(10) : -55 - random.nextInt(40); //device 0 is ours, close to the phone
+            results[i] = new ScanResult(d[device], new ScanRecord(AIRPOD_MANUFACTURER, data), rssi, 0);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,50 @@
+package com.dosse.airpods;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Decoding a beacon: the packed long alone, and a full PodsStatus
+ */
+@State(Scope.Thread)
+public class PodsStatusBenchmark {
+
+    private static final int PAYLOADS = 1024;
+
+    private byte[][] payloads;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        payloads = new byte[PAYLOADS][];
+        for (int i = 0; i < PAYLOADS; i++) {
+            payloads[i] = Beacons.randomPayload(random);
+        }
+    }
+
+    private byte[] nextPayload() {
+        next = (next + 1) & (PAYLOADS - 1);
+        return payloads[next];
+    }
+
+    @Benchmark
+    public long pack() {
+        return PodsStatus.pack(nextPayload());
+    }
+
+    @Benchmark
+    public PodsStatus decode() {
+        return new PodsStatus(nextPayload(), null);
+    }
+
+    @Benchmark
+    public String decodeAndFormat() {
+        PodsStatus status = new PodsStatus(nextPayload(), null);
+        return status.getLeftStatus();
+    }
+}
@@ -0,0 +1,74 @@
+package com.dosse.airpods;
+
+import android.bluetooth.le.ScanResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One beacon through PodsStatusScanCallback.onScanResult, from the scan result to onStatus or onStatusRefreshed:
+ * - steady: our AirPods alone, always sending the same status (the usual case, should allocate nothing)
+ * - crowd: 32 devices around, always sending the same status each
+ * - changing: 32 devices around, every beacon carries a new status
+ * replay does the same without the ScanResult, like BeaconTrace.replay.
+ */
+@State(Scope.Thread)
+public class ScanCallbackBenchmark {
+
+    private static final int RESULTS = 4096;
+
+    @Param({"steady", "crowd", "changing"})
+    public String scenario;
+
+    private ScanResult[] results;
+    private byte[][] data;
+    private long[] addresses;
+    private int next;
+    private long statuses;
+    private long replayTime;
+    private PodsStatusScanCallback callback;
+
+    @Setup
+    public void setup() {
+        int devices = scenario.equals("steady") ? 1 : 32;
+        results = Beacons.results(RESULTS, devices, scenario.equals("changing"), 1);
+        data = new byte[RESULTS][];
+        addresses = new long[RESULTS];
+        for (int i = 0; i < RESULTS; i++) {
+            data[i] = results[i].getScanRecord().getManufacturerSpecificData(PodsStatusScanCallback.AIRPOD_MANUFACTURER);
+            addresses[i] = BeaconWindow.parseAddress(results[i].getDevice().getAddress());
+        }
+        callback = new PodsStatusScanCallback() {
+            @Override
+            public void onStatus(PodsStatus status) {
+                statuses++;
+            }
+
+            @Override
+            public void onStatusRefreshed(PodsStatus status, boolean wasStale) {
+                statuses++;
+            }
+        };
+    }
+
+    @Benchmark
+    public void onScanResult(Blackhole bh) {
+        next = (next + 1) & (RESULTS - 1);
+        ScanResult r = results[next];
+        r.setTimestampNanos(System.nanoTime()); //same timebase as SystemClock.elapsedRealtimeNanos in the stubs
+        callback.onScanResult(0, r);
+        bh.consume(statuses);
+    }
+
+    @Benchmark
+    public void replay(Blackhole bh) {
+        next = (next + 1) & (RESULTS - 1);
+        replayTime += 10000000L; //a beacon every 10 ms
+        callback.replay(replayTime, addresses[next], results[next].getRssi(), data[next]);
+        bh.consume(statuses);
+    }
+}
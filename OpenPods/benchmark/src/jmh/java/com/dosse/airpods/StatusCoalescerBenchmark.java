@@ -0,0 +1,53 @@
+package com.dosse.airpods;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * StatusCoalescer with the packed status:
+ * - duplicate: the beacon carries the same status as the last one, only its timestamp is refreshed (should allocate nothing)
+ * - change: every beacon carries a different status, a PodsStatus is created and accepted, like PodsStatusScanCallback.publish
+ */
+@State(Scope.Thread)
+public class StatusCoalescerBenchmark {
+
+    private static final int PAYLOADS = 1024;
+
+    private final StatusCoalescer coalescer = new StatusCoalescer();
+    private byte[] same;
+    private byte[][] payloads;
+    private int next;
+    private long now;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        payloads = new byte[PAYLOADS][];
+        for (int i = 0; i < PAYLOADS; i++) {
+            //consecutive payloads are always different
+            payloads[i] = Beacons.payload(i % 11, (i / 11) % 11, random.nextInt(11), random.nextInt(8));
+        }
+        same = payloads[0];
+        coalescer.accept(new PodsStatus(same, null));
+    }
+
+    @Benchmark
+    public long duplicate() {
+        return coalescer.refresh(same, ++now);
+    }
+
+    @Benchmark
+    public long change() {
+        next = (next + 1) & (PAYLOADS - 1);
+        byte[] data = payloads[next];
+        long previous = coalescer.refresh(data, ++now);
+        if (previous < 0) {
+            coalescer.accept(new PodsStatus(data, null));
+        }
+        return previous;
+    }
+}
@@ -0,0 +1,23 @@
+package android.bluetooth;
+
+import android.os.ParcelUuid;
+
+public final class BluetoothDevice {
+    private final String address;
+
+    public BluetoothDevice(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return "AirPods";
+    }
+
+    public ParcelUuid[] getUuids() {
+        return null;
+    }
+}
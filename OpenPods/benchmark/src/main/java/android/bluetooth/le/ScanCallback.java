@@ -0,0 +1,14 @@
+package android.bluetooth.le;
+
+import java.util.List;
+
+public abstract class ScanCallback {
+    public void onScanResult(int callbackType, ScanResult result) {
+    }
+
+    public void onBatchScanResults(List<ScanResult> results) {
+    }
+
+    public void onScanFailed(int errorCode) {
+    }
+}
@@ -0,0 +1,14 @@
+package android.bluetooth.le;
+
+public final class ScanFilter {
+
+    public static final class Builder {
+        public Builder setManufacturerData(int manufacturerId, byte[] manufacturerData, byte[] manufacturerDataMask) {
+            return this;
+        }
+
+        public ScanFilter build() {
+            return new ScanFilter();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package android.bluetooth.le;
+
+/**
+ * A scan record with a single manufacturer specific data field
+ */
+public final class ScanRecord {
+    private final int manufacturerId;
+    private final byte[] manufacturerData;
+
+    public ScanRecord(int manufacturerId, byte[] manufacturerData) {
+        this.manufacturerId = manufacturerId;
+        this.manufacturerData = manufacturerData;
+    }
+
+    public byte[] getManufacturerSpecificData(int manufacturerId) {
+        return manufacturerId == this.manufacturerId ? manufacturerData : null;
+    }
+}
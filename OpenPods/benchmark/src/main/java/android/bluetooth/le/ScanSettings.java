@@ -0,0 +1,22 @@
+package android.bluetooth.le;
+
+public final class ScanSettings {
+    public static final int SCAN_MODE_OPPORTUNISTIC = -1;
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    public static final int SCAN_MODE_BALANCED = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    public static final class Builder {
+        public Builder setScanMode(int scanMode) {
+            return this;
+        }
+
+        public Builder setReportDelay(long reportDelayMillis) {
+            return this;
+        }
+
+        public ScanSettings build() {
+            return new ScanSettings();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package android.content;
+
+/**
+ * Returns the English strings used by BatteryLabels and NotificationBuilder
+ */
+public class Context {
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public String getPackageName() {
+        return "com.dosse.airpods";
+    }
+
+    public String getString(int resId) {
+        return "component " + resId;
+    }
+
+    public String getString(int resId, Object... formatArgs) {
+        switch (resId) {
+            case com.dosse.airpods.R.string.remainingMinutes:
+                return String.format("%1$dm", formatArgs);
+            case com.dosse.airpods.R.string.remainingHours:
+                return String.format("%1$dh%2$02dm", formatArgs);
+            default:
+                return String.format("%1$s: %2$s", formatArgs);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+/**
+ * Runs what is posted immediately, on the calling thread
+ */
+public class Handler {
+    public final boolean post(Runnable r) {
+        r.run();
+        return true;
+    }
+}
@@ -0,0 +1,25 @@
+package android.os;
+
+import java.util.UUID;
+
+public final class ParcelUuid {
+    private final UUID uuid;
+
+    public ParcelUuid(UUID uuid) {
+        this.uuid = uuid;
+    }
+
+    public static ParcelUuid fromString(String uuid) {
+        return new ParcelUuid(UUID.fromString(uuid));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ParcelUuid && uuid.equals(((ParcelUuid) other).uuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return uuid.hashCode();
+    }
+}
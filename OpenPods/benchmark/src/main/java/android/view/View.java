@@ -0,0 +1,7 @@
+package android.view;
+
+public class View {
+    public static final int VISIBLE = 0x00000000;
+    public static final int INVISIBLE = 0x00000004;
+    public static final int GONE = 0x00000008;
+}
@@ -0,0 +1,27 @@
+package android.widget;
+
+/**
+ * Counts the actions instead of keeping them
+ */
+public class RemoteViews {
+    private int actions;
+
+    public RemoteViews(String packageName, int layoutId) {
+    }
+
+    public void setImageViewResource(int viewId, int srcId) {
+        actions++;
+    }
+
+    public void setTextViewText(int viewId, CharSequence text) {
+        actions++;
+    }
+
+    public void setViewVisibility(int viewId, int visibility) {
+        actions++;
+    }
+
+    public void setContentDescription(int viewId, CharSequence contentDescription) {
+        actions++;
+    }
+}
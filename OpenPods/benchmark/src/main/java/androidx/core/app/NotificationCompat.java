@@ -0,0 +1,37 @@
+package androidx.core.app;
+
+import android.app.Notification;
+import android.content.Context;
+import android.widget.RemoteViews;
+
+public class NotificationCompat {
+
+    public static class Builder {
+        public Builder(Context context, String channelId) {
+        }
+
+        public Builder setShowWhen(boolean show) {
+            return this;
+        }
+
+        public Builder setOngoing(boolean ongoing) {
+            return this;
+        }
+
+        public Builder setSmallIcon(int icon) {
+            return this;
+        }
+
+        public Builder setCustomContentView(RemoteViews contentView) {
+            return this;
+        }
+
+        public Builder setCustomBigContentView(RemoteViews contentView) {
+            return this;
+        }
+
+        public Notification build() {
+            return new Notification();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.dosse.airpods;
+
+/**
+ * Release build: metrics and events are disabled, like on users' phones
+ */
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
@@ -0,0 +1,49 @@
+package com.dosse.airpods;
+
+/**
+ * The resources referenced by the app classes compiled in this module
+ */
+public final class R {
+    public static final class drawable {
+        public static final int pod = 0x7f010001;
+        public static final int pod_case = 0x7f010002;
+        public static final int pod_case_disconnected = 0x7f010003;
+        public static final int pod_disconnected = 0x7f010004;
+        public static final int podpro = 0x7f010005;
+        public static final int podpro_case = 0x7f010006;
+        public static final int podpro_case_disconnected = 0x7f010007;
+        public static final int podpro_disconnected = 0x7f010008;
+    }
+    public static final class id {
+        public static final int leftPod = 0x7f010009;
+        public static final int leftPodImg = 0x7f01000a;
+        public static final int leftPodText = 0x7f01000b;
+        public static final int leftPodUpdating = 0x7f01000c;
+        public static final int podCase = 0x7f01000d;
+        public static final int podCaseImg = 0x7f01000e;
+        public static final int podCaseText = 0x7f01000f;
+        public static final int podCaseUpdating = 0x7f010010;
+        public static final int rightPod = 0x7f010011;
+        public static final int rightPodImg = 0x7f010012;
+        public static final int rightPodText = 0x7f010013;
+        public static final int rightPodUpdating = 0x7f010014;
+    }
+    public static final class layout {
+        public static final int location_disabled_big = 0x7f010015;
+        public static final int location_disabled_small = 0x7f010016;
+        public static final int status_big = 0x7f010017;
+        public static final int status_small = 0x7f010018;
+    }
+    public static final class mipmap {
+        public static final int notification_icon = 0x7f010019;
+    }
+    public static final class string {
+        public static final int batteryDescription = 0x7f01001a;
+        public static final int batteryDescriptionCharging = 0x7f01001b;
+        public static final int leftPod = 0x7f01001c;
+        public static final int podCase = 0x7f01001d;
+        public static final int remainingHours = 0x7f01001f;
+        public static final int remainingMinutes = 0x7f010020;
+        public static final int rightPod = 0x7f01001e;
+    }
+}